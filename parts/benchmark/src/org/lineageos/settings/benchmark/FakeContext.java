@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.benchmark;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.util.HashMap;
+
+/**
+ * Context stand-in handing out in-memory preferences
+ */
+public final class FakeContext extends Context {
+
+    private final HashMap<String, SharedPreferences> mPrefs = new HashMap<>();
+    private final ContentResolver mContentResolver = new ContentResolver();
+    private final File mFilesDir;
+
+    /**
+     * @param filesDir private app storage, should be empty on first use
+     */
+    public FakeContext(File filesDir) {
+        mFilesDir = filesDir;
+    }
+
+    @Override
+    public String getPackageName() {
+        return "org.lineageos.settings";
+    }
+
+    @Override
+    public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+        return mPrefs.computeIfAbsent(name, k -> new InMemorySharedPreferences());
+    }
+
+    @Override
+    public ContentResolver getContentResolver() {
+        return mContentResolver;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return mFilesDir;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.benchmark;
+
+import org.lineageos.settings.utils.FileUtils;
+import org.lineageos.settings.utils.SysfsNodeRegistry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a single sysfs access: open/close per call versus a handle kept
+ * open in {@link SysfsNodeRegistry}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileUtilsBenchmark {
+
+    private static final String[] VALUES = { "0", "9" };
+
+    private SysfsTree mTree;
+    private String mLegacyNode;
+    private String mHotNode;
+    private String mTempNode;
+    private int mCounter;
+
+    @Setup
+    public void setUp() throws IOException {
+        mTree = SysfsTree.create();
+        mLegacyNode = mTree.node("class/thermal/thermal_message/sconfig", "0");
+        mHotNode = mTree.node("class/leds/red/breath", "0");
+        SysfsNodeRegistry.register(mHotNode);
+        mTempNode = mTree.node("class/thermal/thermal_zone0/temp", "42500\n");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        SysfsNodeRegistry.closeAll();
+        mTree.delete();
+    }
+
+    @Benchmark
+    public boolean writeLineOpenClose() {
+        return FileUtils.writeLine(mLegacyNode, VALUES[mCounter++ & 1]);
+    }
+
+    @Benchmark
+    public boolean writeLineRegistered() {
+        return FileUtils.writeLine(mHotNode, VALUES[mCounter++ & 1]);
+    }
+
+    @Benchmark
+    public int readOneLineParse() {
+        return Integer.parseInt(FileUtils.readOneLine(mTempNode));
+    }
+
+    @Benchmark
+    public int readInt() {
+        return FileUtils.readInt(mTempNode);
+    }
+}
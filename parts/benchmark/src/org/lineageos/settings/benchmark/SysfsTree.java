@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Throwaway stand-in for /sys, created on tmpfs when the host has one
+ */
+public final class SysfsTree {
+
+    private static final String TMPFS = "/dev/shm";
+
+    private final Path mRoot;
+
+    private SysfsTree(Path root) {
+        mRoot = root;
+    }
+
+    public static SysfsTree create() throws IOException {
+        final File shm = new File(TMPFS);
+        final Path root = shm.isDirectory() && shm.canWrite()
+                ? Files.createTempDirectory(shm.toPath(), "sysfs")
+                : Files.createTempDirectory("sysfs");
+        return new SysfsTree(root);
+    }
+
+    /**
+     * Creates the node below the tree root and returns its absolute path
+     */
+    public String node(String relativePath, String initialValue) throws IOException {
+        final Path node = mRoot.resolve(relativePath);
+        Files.createDirectories(node.getParent());
+        Files.write(node, initialValue.getBytes(StandardCharsets.UTF_8));
+        return node.toString();
+    }
+
+    /**
+     * Creates an empty directory below the tree root, e.g. to stand in for
+     * app storage
+     */
+    public File directory(String relativePath) throws IOException {
+        return Files.createDirectories(mRoot.resolve(relativePath)).toFile();
+    }
+
+    public void delete() throws IOException {
+        try (Stream<Path> paths = Files.walk(mRoot)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.refreshrate;
+
+import org.lineageos.settings.benchmark.FakeContext;
+import org.lineageos.settings.benchmark.SysfsTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-package refresh rate switch as done on every foreground change
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RefreshUtilsBenchmark {
+
+    @Param({"10", "100", "500"})
+    public int configuredApps;
+
+    private SysfsTree mTree;
+    private RefreshUtils mRefreshUtils;
+    private String[] mForeground;
+    private int mCounter;
+
+    @Setup
+    public void setUp() throws IOException {
+        mTree = SysfsTree.create();
+        mRefreshUtils = new RefreshUtils(new FakeContext(mTree.directory("data")));
+        for (int i = 0; i < configuredApps; i++) {
+            mRefreshUtils.writePackage("com.example.app" + i,
+                    RefreshUtils.encodeRates(i % 2 == 0 ? 60 : 120, 0));
+        }
+
+        mForeground = new String[] {
+                "com.example.app" + (configuredApps - 1),
+                "com.android.launcher3",
+                "com.example.unconfigured",
+                "com.example.app0",
+        };
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mTree.delete();
+    }
+
+    @Benchmark
+    public void setRefreshRate() {
+        mRefreshUtils.setRefreshRate(mForeground[mCounter++ & 3]);
+    }
+
+    /**
+     * Staying within the same app, where the settings already hold the rates
+     */
+    @Benchmark
+    public void setRefreshRateUnchanged() {
+        mRefreshUtils.setRefreshRate(mForeground[0]);
+    }
+}
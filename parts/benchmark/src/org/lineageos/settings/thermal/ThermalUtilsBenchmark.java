@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.thermal;
+
+import org.lineageos.settings.benchmark.FakeContext;
+import org.lineageos.settings.benchmark.SysfsTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-package and per-activity thermal profile lookup and write as done
+ * on every foreground change
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThermalUtilsBenchmark {
+
+    @Param({"10", "100", "500"})
+    public int configuredApps;
+
+    private SysfsTree mTree;
+    private ThermalUtils mThermalUtils;
+    private String[] mForeground;
+    private String[] mActivities;
+    private int mCounter;
+
+    @Setup
+    public void setUp() throws IOException {
+        mTree = SysfsTree.create();
+        final String sconfig = mTree.node("class/thermal/thermal_message/sconfig", "0");
+        mThermalUtils = new ThermalUtils(new FakeContext(mTree.directory("data")), sconfig);
+        for (int i = 0; i < configuredApps; i++) {
+            mThermalUtils.writePackage("com.example.app" + i,
+                    ThermalUtils.STATE_BENCHMARK + i % ThermalUtils.STATE_STREAMING);
+            if (i % 10 == 0) {
+                mThermalUtils.writeComponent("com.example.app" + i,
+                        "com.example.app" + i + ".PlayerActivity", ThermalUtils.STATE_STREAMING);
+            }
+        }
+
+        // Mostly unconfigured apps, like real app switching
+        mForeground = new String[] {
+                "com.example.app" + (configuredApps - 1),
+                "com.android.launcher3",
+                "com.example.unconfigured",
+                "com.example.app0",
+        };
+        mActivities = new String[] {
+                "com.example.app" + (configuredApps - 1) + ".MainActivity",
+                "com.android.launcher3.Launcher",
+                "com.example.unconfigured.MainActivity",
+                "com.example.app0.PlayerActivity",
+        };
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mTree.delete();
+    }
+
+    @Benchmark
+    public int getStateForPackage() {
+        return mThermalUtils.getStateForPackage(mForeground[mCounter++ & 3]);
+    }
+
+    @Benchmark
+    public int getStateForComponent() {
+        final int i = mCounter++ & 3;
+        return mThermalUtils.getStateForComponent(mForeground[i], mActivities[i]);
+    }
+
+    /**
+     * Lookup plus the sysfs write, waited for so that neither the queue
+     * hand-off alone nor its rejection path is measured
+     */
+    @Benchmark
+    public boolean setThermalProfile() {
+        return mThermalUtils.setThermalProfile(mForeground[mCounter++ & 3]).join();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content;
+
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.os.Handler;
+import android.os.UserHandle;
+
+import java.io.File;
+
+/**
+ * Host stand-in, benchmarks subclass it to provide what they need
+ */
+public abstract class Context {
+    public static final int MODE_PRIVATE = 0;
+
+    public abstract String getPackageName();
+
+    public abstract SharedPreferences getSharedPreferences(String name, int mode);
+
+    public abstract ContentResolver getContentResolver();
+
+    public abstract File getFilesDir();
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter,
+            String broadcastPermission, Handler scheduler) {
+        return null;
+    }
+
+    public <T> T getSystemService(Class<T> serviceClass) {
+        return null;
+    }
+
+    public Resources getResources() {
+        throw new UnsupportedOperationException();
+    }
+
+    public PackageManager getPackageManager() {
+        throw new UnsupportedOperationException();
+    }
+
+    public ComponentName startServiceAsUser(Intent service, UserHandle user) {
+        return null;
+    }
+}
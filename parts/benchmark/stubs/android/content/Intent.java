@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content;
+
+import android.net.Uri;
+
+public class Intent {
+    public static final String ACTION_SCREEN_OFF = "android.intent.action.SCREEN_OFF";
+    public static final String ACTION_SCREEN_ON = "android.intent.action.SCREEN_ON";
+    public static final String ACTION_PACKAGE_ADDED = "android.intent.action.PACKAGE_ADDED";
+    public static final String ACTION_PACKAGE_REPLACED =
+            "android.intent.action.PACKAGE_REPLACED";
+    public static final String ACTION_PACKAGE_REMOVED =
+            "android.intent.action.PACKAGE_REMOVED";
+    public static final String EXTRA_REPLACING = "android.intent.extra.REPLACING";
+
+    private String mAction;
+
+    public Intent(String action) {
+        mAction = action;
+    }
+
+    public Intent(Context context, Class<?> cls) {
+    }
+
+    public String getAction() {
+        return mAction;
+    }
+
+    public Uri getData() {
+        return null;
+    }
+
+    public boolean getBooleanExtra(String name, boolean defaultValue) {
+        return defaultValue;
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content.pm;
+
+public class ApplicationInfo {
+    public static final int CATEGORY_GAME = 0;
+    public static final int CATEGORY_VIDEO = 2;
+    @Deprecated
+    public static final int FLAG_IS_GAME = 1 << 25;
+
+    public int category = -1;
+    public int flags;
+}
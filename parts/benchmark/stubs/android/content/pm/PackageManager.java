@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content.pm;
+
+import java.util.List;
+
+public abstract class PackageManager {
+
+    public static class NameNotFoundException extends Exception {
+    }
+
+    public static final class PackageInfoFlags {
+        private PackageInfoFlags() {
+        }
+
+        public static PackageInfoFlags of(long value) {
+            return new PackageInfoFlags();
+        }
+    }
+
+    public abstract PackageInfo getPackageInfo(String packageName, PackageInfoFlags flags)
+            throws NameNotFoundException;
+
+    public abstract List<PackageInfo> getInstalledPackages(PackageInfoFlags flags);
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class Settings {
+
+    /**
+     * Host stand-in backed by a map. Not per resolver, there is only one.
+     */
+    public static final class System {
+        private static final ConcurrentHashMap<String, Float> sFloats = new ConcurrentHashMap<>();
+
+        public static Uri getUriFor(String name) {
+            return null;
+        }
+
+        public static float getFloat(ContentResolver cr, String name, float def) {
+            final Float value = sFloats.get(name);
+            return value != null ? value : def;
+        }
+
+        public static boolean putFloat(ContentResolver cr, String name, float value) {
+            sFloats.put(name, value);
+            return true;
+        }
+    }
+}
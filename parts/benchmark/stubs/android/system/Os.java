@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.system;
+
+import java.io.FileDescriptor;
+import java.io.InterruptedIOException;
+
+/**
+ * Host stand-in without any syscalls, users fall back to pure Java paths
+ */
+public final class Os {
+
+    private Os() {
+    }
+
+    public static FileDescriptor[] pipe2(int flags) throws ErrnoException {
+        throw new ErrnoException("pipe2", OsConstants.ENOSYS);
+    }
+
+    public static int poll(StructPollfd[] fds, int timeoutMs) throws ErrnoException {
+        throw new ErrnoException("poll", OsConstants.ENOSYS);
+    }
+
+    public static int read(FileDescriptor fd, byte[] bytes, int byteOffset, int byteCount)
+            throws ErrnoException, InterruptedIOException {
+        throw new ErrnoException("read", OsConstants.ENOSYS);
+    }
+
+    public static int write(FileDescriptor fd, byte[] bytes, int byteOffset, int byteCount)
+            throws ErrnoException, InterruptedIOException {
+        throw new ErrnoException("write", OsConstants.ENOSYS);
+    }
+
+    public static void close(FileDescriptor fd) throws ErrnoException {
+        throw new ErrnoException("close", OsConstants.ENOSYS);
+    }
+}
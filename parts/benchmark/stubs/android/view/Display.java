@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.view;
+
+public final class Display {
+    public static final int DEFAULT_DISPLAY = 0;
+
+    public Mode getMode() {
+        return new Mode();
+    }
+
+    public Mode[] getSupportedModes() {
+        return new Mode[0];
+    }
+
+    public static final class Mode {
+        public int getPhysicalWidth() {
+            return 0;
+        }
+
+        public int getPhysicalHeight() {
+            return 0;
+        }
+
+        public float getRefreshRate() {
+            return 60f;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings;
+
+/**
+ * Host stand-in for the generated resource ids, only those referenced by
+ * the sources built on the host
+ */
+public final class R {
+
+    public static final class array {
+        public static final int config_thermalTransientPackages = 0;
+    }
+
+    public static final class integer {
+        public static final int config_thermalPromoteDelayMs = 0;
+        public static final int config_thermalDemoteDelayMs = 1;
+        public static final int config_thermalMinDwellMs = 2;
+    }
+}
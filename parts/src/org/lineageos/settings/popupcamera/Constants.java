@@ -50,5 +50,9 @@ public class Constants {
             "/sys/class/leds/green-right/breath";
     public static final String RED_RIGHT_LED_PATH =
             "/sys/class/leds/red-right/breath";
+    public static final String[] LED_PATHS = {
+            RED_LED_PATH, GREEN_LED_PATH, BLUE_LED_PATH,
+            RED_RIGHT_LED_PATH, GREEN_RIGHT_LED_PATH, BLUE_RIGHT_LED_PATH
+    };
     public static final String POPUP_SOUND_PATH = "/system_ext/media/audio/ui/";
 }
@@ -43,11 +43,17 @@ import org.lineageos.settings.R;
 import org.lineageos.settings.sensors.ProximitySensor;
 import org.lineageos.settings.sensors.SensorsUtils;
 import org.lineageos.settings.utils.FileUtils;
+import org.lineageos.settings.utils.SysfsNodeRegistry;
 
 import vendor.xiaomi.hardware.motor.V1_0.IMotor;
 import vendor.xiaomi.hardware.motor.V1_0.IMotorCallback;
 import vendor.xiaomi.hardware.motor.V1_0.MotorEvent;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 public class PopupCameraService extends Service implements Handler.Callback {
@@ -55,6 +61,9 @@ public class PopupCameraService extends Service implements Handler.Callback {
     private static final String TAG = "PopupCameraService";
     private static final boolean DEBUG = false;
 
+    private static final Map<String, String> LEDS_ON = ledValues("1");
+    private static final Map<String, String> LEDS_OFF = ledValues("0");
+
     private IMotor mMotor = null;
 
     private final Object mLock = new Object();
@@ -155,6 +164,9 @@ public class PopupCameraService extends Service implements Handler.Callback {
         mProximitySensor = new ProximitySensor(this);
 
         mPopupCameraPreferences = new PopupCameraPreferences(this);
+        for (String led : Constants.LED_PATHS) {
+            SysfsNodeRegistry.register(led);
+        }
 
         mSoundPool = new SoundPool.Builder()
                 .setMaxStreams(1)
@@ -208,6 +220,7 @@ public class PopupCameraService extends Service implements Handler.Callback {
             return;
         }
         mProximitySensor.disable();
+        SysfsNodeRegistry.closeAll();
         super.onDestroy();
     }
 
@@ -216,6 +229,13 @@ public class PopupCameraService extends Service implements Handler.Callback {
         return null;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("PopupCameraService:");
+        pw.println("  motor busy: " + mMotorBusy + " calibrating: " + mMotorCalibrating);
+        FileUtils.dump(pw);
+    }
+
     // Handler.Callback
     @Override
     public boolean handleMessage(Message msg) {
@@ -315,23 +335,18 @@ public class PopupCameraService extends Service implements Handler.Callback {
         }
     }
 
+    private static Map<String, String> ledValues(String value) {
+        final Map<String, String> values = new LinkedHashMap<>();
+        for (String led : Constants.LED_PATHS) {
+            values.put(led, value);
+        }
+        return Collections.unmodifiableMap(values);
+    }
+
     private void lightUp() {
         if (mPopupCameraPreferences.isLedAllowed()) {
-            FileUtils.writeLine(Constants.RED_LED_PATH, "1");
-            FileUtils.writeLine(Constants.GREEN_LED_PATH, "1");
-            FileUtils.writeLine(Constants.BLUE_LED_PATH, "1");
-            FileUtils.writeLine(Constants.RED_RIGHT_LED_PATH, "1");
-            FileUtils.writeLine(Constants.GREEN_RIGHT_LED_PATH, "1");
-            FileUtils.writeLine(Constants.BLUE_RIGHT_LED_PATH, "1");
-
-            mHandler.postDelayed(() -> {
-                FileUtils.writeLine(Constants.RED_LED_PATH, "0");
-                FileUtils.writeLine(Constants.GREEN_LED_PATH, "0");
-                FileUtils.writeLine(Constants.BLUE_LED_PATH, "0");
-                FileUtils.writeLine(Constants.RED_RIGHT_LED_PATH, "0");
-                FileUtils.writeLine(Constants.GREEN_RIGHT_LED_PATH, "0");
-                FileUtils.writeLine(Constants.BLUE_RIGHT_LED_PATH, "0");
-            }, 2300);
+            FileUtils.writeAll(LEDS_ON);
+            mHandler.postDelayed(() -> FileUtils.writeAll(LEDS_OFF), 2300);
         }
     }
 
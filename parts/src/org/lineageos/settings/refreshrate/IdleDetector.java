@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.refreshrate;
+
+/**
+ * Tells whether the user is currently doing anything with the foreground
+ * app. {@link IdleDownshifter} only depends on this interface, so that
+ * another signal source can be plugged in.
+ */
+interface IdleDetector {
+
+    interface Listener {
+        /**
+         * Nothing happened for the timeout since the last activity
+         */
+        void onIdle();
+
+        /**
+         * Something happened after {@link #onIdle}, to be reported as early
+         * as possible
+         */
+        void onActive();
+    }
+
+    /**
+     * Starts watching the given app, or restarts the timeout if already
+     * watching. Callbacks arrive on the thread the detector was set up with.
+     */
+    void start(String packageName, long timeoutMs, Listener listener);
+
+    /**
+     * Stops watching, no callback arrives afterwards
+     */
+    void stop();
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.refreshrate;
+
+import java.io.PrintWriter;
+
+/**
+ * Lowers the peak refresh rate of apps which may go above the idle rate
+ * while the user is not interacting with them, and raises it again on the
+ * next activity.
+ *
+ * Not thread safe, to be used on the thread the detector calls back on.
+ */
+final class IdleDownshifter implements IdleDetector.Listener {
+
+    // Time without activity before the rate is lowered
+    static final long IDLE_TIMEOUT_MS = 4000;
+
+    private final RefreshUtils mRefreshUtils;
+    private final IdleDetector mDetector;
+
+    // Foreground app being watched, null if it is not eligible
+    private String mPackage;
+    private boolean mIdle;
+    private long mDownshifts;
+    private long mIdleSince;
+    private long mIdleTimeMs;
+
+    IdleDownshifter(RefreshUtils refreshUtils, IdleDetector detector) {
+        mRefreshUtils = refreshUtils;
+        mDetector = detector;
+    }
+
+    /**
+     * Applies the profile of the new foreground activity, which also ends
+     * any idle period, and starts watching it if it is eligible
+     */
+    void onForegroundChanged(String packageName, String className) {
+        mRefreshUtils.setRefreshRate(packageName, className);
+        endIdle();
+        if (mRefreshUtils.canDownshiftWhenIdle(packageName, className)) {
+            mPackage = packageName;
+            mDetector.start(packageName, IDLE_TIMEOUT_MS, this);
+        } else if (mPackage != null) {
+            mPackage = null;
+            mDetector.stop();
+        }
+    }
+
+    /**
+     * Stops watching until the next foreground change, going back to the
+     * app's rate if it was lowered
+     */
+    void stop() {
+        if (mPackage != null) {
+            mPackage = null;
+            mDetector.stop();
+        }
+        if (mIdle) {
+            mRefreshUtils.setIdle(false);
+            endIdle();
+        }
+    }
+
+    @Override
+    public void onIdle() {
+        if (mPackage == null || mIdle) {
+            return;
+        }
+        mIdle = true;
+        mDownshifts++;
+        mIdleSince = System.currentTimeMillis();
+        mRefreshUtils.setIdle(true);
+    }
+
+    @Override
+    public void onActive() {
+        if (!mIdle) {
+            return;
+        }
+        mRefreshUtils.setIdle(false);
+        endIdle();
+    }
+
+    private void endIdle() {
+        if (mIdle) {
+            mIdle = false;
+            mIdleTimeMs += System.currentTimeMillis() - mIdleSince;
+        }
+    }
+
+    boolean isIdle() {
+        return mIdle;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  idle downshift: package=" + mPackage + " idle=" + mIdle
+                + " downshifts=" + mDownshifts + " idle time=" + mIdleTimeMs + "ms");
+    }
+}
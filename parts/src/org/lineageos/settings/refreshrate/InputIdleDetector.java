@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.refreshrate;
+
+import android.content.Context;
+import android.hardware.input.InputManager;
+import android.media.session.MediaController;
+import android.media.session.MediaSessionManager;
+import android.media.session.PlaybackState;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Display;
+import android.view.InputEvent;
+import android.view.InputEventReceiver;
+import android.view.InputMonitor;
+
+import java.util.List;
+
+/**
+ * Considers the foreground app idle once there was no input on the default
+ * display for the timeout, and active again on the very next input event.
+ *
+ * Input is seen through a gesture monitor, which gets a copy of every event
+ * without taking it away from the app. There is no way to see whether an
+ * app keeps drawing, so an app playing media is never considered idle.
+ *
+ * Everything runs on the given handler.
+ */
+final class InputIdleDetector implements IdleDetector {
+    private static final String TAG = "InputIdleDetector";
+
+    private final InputManager mInputManager;
+    private final MediaSessionManager mMediaSessionManager;
+    private final Handler mHandler;
+    private final Runnable mTimeoutRunnable = this::onTimeout;
+
+    private InputMonitor mMonitor;
+    private InputEventReceiver mReceiver;
+    private Listener mListener;
+    private String mPackage;
+    private long mTimeoutMs;
+    private long mLastActivity;
+    private boolean mIdle;
+
+    InputIdleDetector(Context context, Handler handler) {
+        mInputManager = context.getSystemService(InputManager.class);
+        mMediaSessionManager = context.getSystemService(MediaSessionManager.class);
+        mHandler = handler;
+    }
+
+    @Override
+    public void start(String packageName, long timeoutMs, Listener listener) {
+        mPackage = packageName;
+        mTimeoutMs = timeoutMs;
+        mListener = listener;
+        mIdle = false;
+        if (mMonitor == null && !startMonitor()) {
+            // Without input we cannot tell when to come back, so never go idle
+            mHandler.removeCallbacks(mTimeoutRunnable);
+            return;
+        }
+        mLastActivity = SystemClock.uptimeMillis();
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mHandler.postDelayed(mTimeoutRunnable, timeoutMs);
+    }
+
+    @Override
+    public void stop() {
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mListener = null;
+        mPackage = null;
+        mIdle = false;
+        if (mReceiver != null) {
+            mReceiver.dispose();
+            mReceiver = null;
+        }
+        if (mMonitor != null) {
+            mMonitor.dispose();
+            mMonitor = null;
+        }
+    }
+
+    private boolean startMonitor() {
+        try {
+            mMonitor = mInputManager.monitorGestureInput(TAG, Display.DEFAULT_DISPLAY);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not monitor input", e);
+            return false;
+        }
+        mReceiver = new InputEventReceiver(mMonitor.getInputChannel(), mHandler.getLooper()) {
+            @Override
+            public void onInputEvent(InputEvent event) {
+                try {
+                    onInput();
+                } finally {
+                    finishInputEvent(event, false);
+                }
+            }
+        };
+        return true;
+    }
+
+    private void onInput() {
+        if (mListener == null) {
+            return;
+        }
+        // Moves come in at the panel's rate, so only note the time here and
+        // leave it to the pending timeout to look at it
+        mLastActivity = SystemClock.uptimeMillis();
+        if (mIdle) {
+            mIdle = false;
+            mListener.onActive();
+            mHandler.postDelayed(mTimeoutRunnable, mTimeoutMs);
+        }
+    }
+
+    private void onTimeout() {
+        if (mListener == null) {
+            return;
+        }
+        final long remaining = mLastActivity + mTimeoutMs - SystemClock.uptimeMillis();
+        if (remaining > 0) {
+            mHandler.postDelayed(mTimeoutRunnable, remaining);
+        } else if (isPlayingMedia(mPackage)) {
+            mHandler.postDelayed(mTimeoutRunnable, mTimeoutMs);
+        } else {
+            mIdle = true;
+            mListener.onIdle();
+        }
+    }
+
+    private boolean isPlayingMedia(String packageName) {
+        final List<MediaController> controllers;
+        try {
+            controllers = mMediaSessionManager.getActiveSessions(null);
+        } catch (SecurityException e) {
+            return false;
+        }
+        for (MediaController controller : controllers) {
+            final PlaybackState state = controller.getPlaybackState();
+            if (packageName.equals(controller.getPackageName()) && state != null
+                    && state.getState() == PlaybackState.STATE_PLAYING) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.refreshrate;
+
+/**
+ * Immutable refresh rate policy: the user's own rates, the rate a per-app
+ * profile puts on top of them, caps while the app sits idle or the battery
+ * runs low, and what the settings currently hold.
+ *
+ * The baseline only ever changes through the user, either in our settings
+ * or from outside, and never picks up a per-app rate. Every change returns
+ * a new snapshot, or this one if nothing changed, so callers can swap it
+ * atomically and tell a no-op apart by identity.
+ */
+final class RefreshPolicy {
+
+    // The user's own rates, restored whenever no profile applies
+    final float baselinePeak;
+    final float baselineMin;
+    // Peak rate of the per-app profile in effect, NaN if none
+    final float overridePeak;
+    // Minimum rate of that profile, NaN to keep the user's
+    final float overrideMin;
+    // Peak rate while the foreground app is idle, NaN while it is not
+    final float idlePeak;
+    // Peak rate the battery state allows, NaN if it does not matter
+    final float powerPeak;
+    // What the settings hold, as last written or observed
+    final float appliedPeak;
+    final float appliedMin;
+
+    RefreshPolicy(float baselinePeak, float baselineMin, float overridePeak,
+            float overrideMin, float idlePeak, float powerPeak, float appliedPeak,
+            float appliedMin) {
+        this.baselinePeak = baselinePeak;
+        this.baselineMin = baselineMin;
+        this.overridePeak = overridePeak;
+        this.overrideMin = overrideMin;
+        this.idlePeak = idlePeak;
+        this.powerPeak = powerPeak;
+        this.appliedPeak = appliedPeak;
+        this.appliedMin = appliedMin;
+    }
+
+    /**
+     * @return a policy without override, which the settings already follow
+     */
+    static RefreshPolicy fromSettings(float peak, float min) {
+        return restore(peak, min, peak, min);
+    }
+
+    /**
+     * @return a policy without override for the given baseline, while the
+     * settings hold the given rates, e.g. those of a profile which was in
+     * effect when the process died
+     */
+    static RefreshPolicy restore(float baselinePeak, float baselineMin, float peak, float min) {
+        return new RefreshPolicy(baselinePeak, baselineMin, Float.NaN, Float.NaN, Float.NaN,
+                Float.NaN, peak, min);
+    }
+
+    boolean isOverridden() {
+        return !Float.isNaN(overridePeak);
+    }
+
+    boolean isIdle() {
+        return !Float.isNaN(idlePeak);
+    }
+
+    boolean isPowerLimited() {
+        return !Float.isNaN(powerPeak);
+    }
+
+    float targetPeak() {
+        float peak = isOverridden() ? overridePeak : baselinePeak;
+        if (isIdle()) {
+            peak = Math.min(peak, idlePeak);
+        }
+        if (isPowerLimited()) {
+            peak = Math.min(peak, powerPeak);
+        }
+        return peak;
+    }
+
+    float targetMin() {
+        final float min = isOverridden() && !Float.isNaN(overrideMin) ? overrideMin : baselineMin;
+        // A peak below the user's minimum lowers the minimum with it
+        return isOverridden() || isIdle() || isPowerLimited()
+                ? Math.min(min, targetPeak()) : min;
+    }
+
+    /**
+     * @return whether the settings hold what this policy asks for
+     */
+    boolean isApplied() {
+        return appliedPeak == targetPeak() && appliedMin == targetMin();
+    }
+
+    /**
+     * Switches to another profile, the app behind it starts out active
+     *
+     * @param peak the profile's peak rate, NaN to go back to the baseline
+     * @param min  the profile's minimum rate, NaN to keep the user's
+     */
+    RefreshPolicy withOverride(float peak, float min) {
+        if (Float.compare(peak, overridePeak) == 0 && Float.compare(min, overrideMin) == 0
+                && !isIdle()) {
+            return this;
+        }
+        return new RefreshPolicy(baselinePeak, baselineMin, peak, min, Float.NaN, powerPeak,
+                appliedPeak, appliedMin);
+    }
+
+    /**
+     * @param peak the peak rate while idle, NaN once the app is active again
+     */
+    RefreshPolicy withIdlePeak(float peak) {
+        if (Float.compare(peak, idlePeak) == 0) {
+            return this;
+        }
+        return new RefreshPolicy(baselinePeak, baselineMin, overridePeak, overrideMin, peak,
+                powerPeak, appliedPeak, appliedMin);
+    }
+
+    /**
+     * @param peak the peak rate the battery state allows, NaN for no limit
+     */
+    RefreshPolicy withPowerPeak(float peak) {
+        if (Float.compare(peak, powerPeak) == 0) {
+            return this;
+        }
+        return new RefreshPolicy(baselinePeak, baselineMin, overridePeak, overrideMin,
+                idlePeak, peak, appliedPeak, appliedMin);
+    }
+
+    RefreshPolicy withBaselineMin(float min) {
+        if (min == baselineMin) {
+            return this;
+        }
+        return new RefreshPolicy(baselinePeak, min, overridePeak, overrideMin, idlePeak,
+                powerPeak, appliedPeak, appliedMin);
+    }
+
+    /**
+     * @return this policy with its target written to the settings
+     */
+    RefreshPolicy applied() {
+        if (isApplied()) {
+            return this;
+        }
+        return new RefreshPolicy(baselinePeak, baselineMin, overridePeak, overrideMin,
+                idlePeak, powerPeak, targetPeak(), targetMin());
+    }
+
+    /**
+     * Takes rates someone else wrote to the settings as the user's new
+     * baseline. A profile in effect stays until the next app switch.
+     */
+    RefreshPolicy withExternalChange(float peak, float min) {
+        return new RefreshPolicy(peak, min, overridePeak, overrideMin, idlePeak, powerPeak,
+                peak, min);
+    }
+
+    @Override
+    public String toString() {
+        return "baseline=" + baselinePeak + "/" + baselineMin
+                + " override=" + (isOverridden() ? overridePeak + "/" + overrideMin : "none")
+                + " idle=" + (isIdle() ? idlePeak : "no")
+                + " power=" + (isPowerLimited() ? powerPeak : "no")
+                + " applied=" + appliedPeak + "/" + appliedMin;
+    }
+}
@@ -22,21 +22,42 @@ import android.app.IActivityTaskManager;
 import android.app.TaskStackListener;
 import android.app.Service;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.hardware.display.DisplayManager;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.Process;
 import android.util.Log;
 import android.os.RemoteException;
+import android.view.Display;
+
+import org.lineageos.settings.utils.AppClassifier;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 public class RefreshService extends Service {
 
     private static final String TAG = "RefreshService";
     private static final boolean DEBUG = true;
 
-    private String mPreviousApp;
+    private ComponentName mPreviousActivity;
     private RefreshUtils mRefreshUtils;
     private IActivityTaskManager mActivityTaskManager;
+    private DisplayManager mDisplayManager;
+    private float mDisplayRate;
+    private PowerManager mPowerManager;
+
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+    // Only touched on the handler thread
+    private IdleDownshifter mIdleDownshifter;
 
     private BroadcastReceiver mIntentReceiver = new BroadcastReceiver() {
         @Override
@@ -44,13 +65,38 @@ public class RefreshService extends Service {
 
             if (intent.getAction().equals(Intent.ACTION_SHUTDOWN)) {
                 mRefreshUtils.resetUserDefault();
-            } else mPreviousApp = "";
+            } else mPreviousActivity = null;
+            if (intent.getAction().equals(Intent.ACTION_SCREEN_OFF)) {
+                mHandler.post(mIdleDownshifter::stop);
+            }
+        }
+    };
+
+    // Runs on the handler thread
+    private final BroadcastReceiver mPowerReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // Power save changes carry no battery state, so use the sticky one
+            final Intent battery = Intent.ACTION_BATTERY_CHANGED.equals(intent.getAction())
+                    ? intent
+                    : registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            if (battery == null) {
+                return;
+            }
+            final int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, 100);
+            final int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+            final boolean charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            mRefreshUtils.setPowerState(scale > 0 ? level * 100 / scale : 100, charging,
+                    mPowerManager.isPowerSaveMode());
         }
     };
 
     @Override
     public void onCreate() {
         if (DEBUG) Log.d(TAG, "Creating service");
+        mHandlerThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_FOREGROUND);
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
         try {
             mActivityTaskManager = ActivityTaskManager.getService();
             mActivityTaskManager.registerTaskStackListener(mTaskListener);
@@ -58,10 +104,37 @@ public class RefreshService extends Service {
             // Do nothing
         }
         mRefreshUtils = new RefreshUtils(this);
+        mRefreshUtils.setClassifier(AppClassifier.get(this));
+        mIdleDownshifter = new IdleDownshifter(mRefreshUtils,
+                new InputIdleDetector(this, mHandler));
         registerReceiver();
+        mPowerManager = getSystemService(PowerManager.class);
+        final IntentFilter powerFilter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+        powerFilter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+        // The current battery state is delivered right away, it is sticky
+        registerReceiver(mPowerReceiver, powerFilter, null, mHandler);
+        mDisplayManager = getSystemService(DisplayManager.class);
+        mDisplayRate = mDisplayManager.getDisplay(Display.DEFAULT_DISPLAY).getRefreshRate();
+        mDisplayManager.registerDisplayListener(mDisplayListener, null);
         super.onCreate();
     }
 
+    @Override
+    public void onDestroy() {
+        if (DEBUG) Log.d(TAG, "Destroying service");
+        try {
+            mActivityTaskManager.unregisterTaskStackListener(mTaskListener);
+        } catch (RemoteException e) {
+            // Do nothing
+        }
+        unregisterReceiver(mIntentReceiver);
+        mDisplayManager.unregisterDisplayListener(mDisplayListener);
+        unregisterReceiver(mPowerReceiver);
+        mHandler.post(mIdleDownshifter::stop);
+        mHandlerThread.quitSafely();
+        super.onDestroy();
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (DEBUG) Log.d(TAG, "Starting service");
@@ -73,6 +146,14 @@ public class RefreshService extends Service {
         return null;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("RefreshService:");
+        pw.println("  previous activity: " + mPreviousActivity);
+        mIdleDownshifter.dump(pw);
+        RefreshUtils.dump(pw);
+    }
+
     private void registerReceiver() {
         IntentFilter filter = new IntentFilter();
         filter.addAction(Intent.ACTION_SCREEN_OFF);
@@ -81,6 +162,30 @@ public class RefreshService extends Service {
         this.registerReceiver(mIntentReceiver, filter);
     }
 
+    private final DisplayManager.DisplayListener mDisplayListener =
+            new DisplayManager.DisplayListener() {
+        @Override
+        public void onDisplayChanged(int displayId) {
+            if (displayId != Display.DEFAULT_DISPLAY) {
+                return;
+            }
+            final Display display = mDisplayManager.getDisplay(displayId);
+            final float rate = display != null ? display.getRefreshRate() : mDisplayRate;
+            if (rate != mDisplayRate) {
+                mDisplayRate = rate;
+                RefreshUtils.onDisplayModeChanged();
+            }
+        }
+
+        @Override
+        public void onDisplayAdded(int displayId) {
+        }
+
+        @Override
+        public void onDisplayRemoved(int displayId) {
+        }
+    };
+
      private final TaskStackListener mTaskListener = new TaskStackListener() {
         @Override
         public void onTaskStackChanged() {
@@ -89,13 +194,12 @@ public class RefreshService extends Service {
                 if (info == null || info.topActivity == null) {
                     return;
                 }
-                String foregroundApp = info.topActivity.getPackageName();
-                if (!mRefreshUtils.isAppInList) {
-                 mRefreshUtils.getOldRate();
-                  } 
-                if (!foregroundApp.equals(mPreviousApp)) {
-                    mRefreshUtils.setRefreshRate(foregroundApp);
-                    mPreviousApp = foregroundApp;
+                final ComponentName foreground = info.topActivity;
+                // Activities may have a profile of their own, so look at every change
+                if (!foreground.equals(mPreviousActivity)) {
+                    mHandler.post(() -> mIdleDownshifter.onForegroundChanged(
+                            foreground.getPackageName(), foreground.getClassName()));
+                    mPreviousActivity = foreground;
                   }
  		 } catch (Exception e) {}
             }
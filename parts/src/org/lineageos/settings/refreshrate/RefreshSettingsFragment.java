@@ -16,6 +16,7 @@
 package org.lineageos.settings.refreshrate;
 
 import android.annotation.Nullable;
+import android.app.AlertDialog;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
@@ -46,6 +47,8 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import com.android.settingslib.applications.ApplicationsState;
 
 import org.lineageos.settings.R;
+import org.lineageos.settings.utils.AppClassifier;
+import org.lineageos.settings.widget.ActivityProfileDialog;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -73,6 +76,9 @@ public class RefreshSettingsFragment extends PreferenceFragment
 
     private RefreshUtils mRefreshUtils;
     private RecyclerView mAppsRecyclerView;
+    // Profiles offered for every app, derived from the display modes
+    private int[] mChoices;
+    private CharSequence[] mChoiceNames;
 
     @Override
     public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
@@ -92,6 +98,13 @@ public class RefreshSettingsFragment extends PreferenceFragment
         mRVAdapter = new ConcatAdapter(mExtraAdapter, mAllPackagesAdapter);
 
         mRefreshUtils = new RefreshUtils(getActivity());
+        // Show what unconfigured apps actually get
+        mRefreshUtils.setClassifier(AppClassifier.get(getActivity()));
+        mChoices = mRefreshUtils.getRateChoices();
+        mChoiceNames = new CharSequence[mChoices.length];
+        for (int i = 0; i < mChoices.length; i++) {
+            mChoiceNames[i] = getChoiceName(mChoices[i]);
+        }
     }
 
     @Override
@@ -205,16 +218,64 @@ public class RefreshSettingsFragment extends PreferenceFragment
         mSession.rebuild(mActivityFilter, ApplicationsState.ALPHA_COMPARATOR);
     }
 
+    private void showActivityProfiles(ApplicationsState.AppEntry entry) {
+        final String packageName = entry.info.packageName;
+        ActivityProfileDialog.show(getActivity(), packageName, entry.label, mChoiceNames,
+                new ActivityProfileDialog.Profiles() {
+                    @Override
+                    public int get(String className) {
+                        final Integer state = mRefreshUtils.getComponentStates(packageName)
+                                .get(className);
+                        if (state == null) {
+                            return PROFILE_INHERIT;
+                        }
+                        final int choice = getChoice(state);
+                        return choice >= 0 ? choice : PROFILE_OTHER;
+                    }
+
+                    @Override
+                    public CharSequence getOtherName(String className) {
+                        return getChoiceName(mRefreshUtils.getComponentStates(packageName)
+                                .get(className));
+                    }
+
+                    @Override
+                    public void set(String className, int profile) {
+                        mRefreshUtils.writeComponent(packageName, className,
+                                profile < 0 ? RefreshUtils.STATE_INHERIT : mChoices[profile]);
+                    }
+                });
+    }
+
+    private String getChoiceName(int state) {
+        if (!RefreshUtils.isRates(state)) {
+            return getString(R.string.refresh_default);
+        }
+        final int peak = RefreshUtils.peakOf(state);
+        return RefreshUtils.minOf(state) == peak
+                ? getString(R.string.refresh_rate_fixed, peak)
+                : getString(R.string.refresh_rate_up_to, peak);
+    }
+
+    /**
+     * @return the position of the given profile among the offered ones,
+     * or -1 if the display does not support it
+     */
+    private int getChoice(int state) {
+        for (int i = 0; i < mChoices.length; i++) {
+            if (mChoices[i] == state) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     private int getStateDrawable(int state) {
-        switch (state) {
-            case RefreshUtils.STATE_STANDARD:
-                return R.drawable.ic_refresh_60;
-            case RefreshUtils.STATE_EXTREME:
-                return R.drawable.ic_refresh_120;
-            case RefreshUtils.STATE_DEFAULT:
-            default:
-                return R.drawable.ic_refresh_default;
+        if (!RefreshUtils.isRates(state)) {
+            return R.drawable.ic_refresh_default;
         }
+        return RefreshUtils.peakOf(state) <= 60 ? R.drawable.ic_refresh_60
+                : R.drawable.ic_refresh_120;
     }
 
     private class CategoryViewHolder extends RecyclerView.ViewHolder {
@@ -234,6 +295,9 @@ public class RefreshSettingsFragment extends PreferenceFragment
         private ImageView icon;
         private View rootView;
         private ImageView stateIcon;
+        private ApplicationsState.AppEntry entry;
+        // Spinner position of the stored profile, to tell binding from user picks
+        private int boundChoice;
 
         private ViewHolder(View view) {
             super(view);
@@ -269,24 +333,43 @@ public class RefreshSettingsFragment extends PreferenceFragment
     private class ModeAdapter extends BaseAdapter {
 
         private final LayoutInflater inflater;
-        private final int[] items = {
-                R.string.refresh_default,
-                R.string.refresh_standard,
-                R.string.refresh_extreme
-        };
-
-        private ModeAdapter(Context context) {
+        private final int[] states;
+        private final CharSequence[] names;
+
+        /**
+         * Offers the supported profiles, followed by the stored one if the
+         * display does not support it, so that it is shown as it is.
+         */
+        private ModeAdapter(Context context, int storedState) {
             inflater = LayoutInflater.from(context);
+            if (getChoice(storedState) >= 0) {
+                states = mChoices;
+                names = mChoiceNames;
+            } else {
+                states = Arrays.copyOf(mChoices, mChoices.length + 1);
+                states[mChoices.length] = storedState;
+                names = Arrays.copyOf(mChoiceNames, mChoiceNames.length + 1);
+                names[mChoiceNames.length] = getChoiceName(storedState);
+            }
+        }
+
+        private int getPosition(int state) {
+            for (int i = 0; i < states.length; i++) {
+                if (states[i] == state) {
+                    return i;
+                }
+            }
+            return 0;
         }
 
         @Override
         public int getCount() {
-            return items.length;
+            return names.length;
         }
 
         @Override
         public Object getItem(int position) {
-            return items[position];
+            return names[position];
         }
 
         @Override
@@ -304,7 +387,7 @@ public class RefreshSettingsFragment extends PreferenceFragment
                         parent, false);
             }
 
-            view.setText(items[position]);
+            view.setText(names[position]);
             view.setTextSize(14f);
 
             return view;
@@ -364,15 +447,26 @@ public class RefreshSettingsFragment extends PreferenceFragment
                 return;
             }
             ViewHolder viewHolder = (ViewHolder) holder;
-            viewHolder.mode.setAdapter(new ModeAdapter(context));
+            int packageState = mRefreshUtils.getStateForPackage(entry.info.packageName);
+            ModeAdapter modeAdapter = new ModeAdapter(context, packageState);
+            viewHolder.entry = entry;
+            viewHolder.boundChoice = modeAdapter.getPosition(packageState);
+            viewHolder.mode.setAdapter(modeAdapter);
             viewHolder.mode.setOnItemSelectedListener(this);
             viewHolder.title.setText(entry.label);
             viewHolder.title.setOnClickListener(v -> viewHolder.mode.performClick());
+            viewHolder.title.setOnLongClickListener(v -> {
+                showActivityProfiles(entry);
+                return true;
+            });
+            viewHolder.rootView.setOnLongClickListener(v -> {
+                showActivityProfiles(entry);
+                return true;
+            });
             mApplicationsState.ensureIcon(entry);
             viewHolder.icon.setImageDrawable(entry.icon);
-            int packageState = mRefreshUtils.getStateForPackage(entry.info.packageName);
-            viewHolder.mode.setSelection(packageState, false);
-            viewHolder.mode.setTag(entry);
+            viewHolder.mode.setSelection(viewHolder.boundChoice, false);
+            viewHolder.mode.setTag(viewHolder);
             viewHolder.stateIcon.setImageResource(getStateDrawable(packageState));
         }
 
@@ -390,13 +484,17 @@ public class RefreshSettingsFragment extends PreferenceFragment
 
         @Override
         public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
-            final ApplicationsState.AppEntry entry = (ApplicationsState.AppEntry) parent.getTag();
-
-            int currentState = mRefreshUtils.getStateForPackage(entry.info.packageName);
-            if (currentState != position) {
-                mRefreshUtils.writePackage(entry.info.packageName, position);
-                notifyDataSetChanged();
+            final ViewHolder viewHolder = (ViewHolder) parent.getTag();
+            if (position == viewHolder.boundChoice) {
+                // Selection made while binding, or the stored profile picked again
+                return;
             }
+            viewHolder.boundChoice = position;
+
+            final ModeAdapter modeAdapter = (ModeAdapter) parent.getAdapter();
+            mRefreshUtils.writePackage(viewHolder.entry.info.packageName,
+                    modeAdapter.states[position]);
+            notifyDataSetChanged();
         }
 
         @Override
@@ -442,7 +540,7 @@ public class RefreshSettingsFragment extends PreferenceFragment
 
         @Override
         public int getItemCount() {
-            return 2;
+            return 4;
         }
 
         @Override
@@ -481,7 +579,53 @@ public class RefreshSettingsFragment extends PreferenceFragment
                 viewHolder.status.setText(minfps30 ? R.string.refresh_30hz : R.string.refresh_standard);
                 viewHolder.preference.setTag(RefreshUtils.KEY_MIN_REFRESH_RATE);
                 viewHolder.preference.setChecked(minfps30);
+            } else if (position == 2) {
+                SwitchPrefViewHolder viewHolder = (SwitchPrefViewHolder) holder;
+                viewHolder.title.setText(R.string.refresh_title_battery_saver_limit);
+                viewHolder.rootView.setOnClickListener(v -> viewHolder.preference.performClick());
+                viewHolder.icon.setImageResource(R.drawable.ic_refresh_60);
+
+                boolean limited = mRefreshUtils.isBatterySaverLimited();
+                viewHolder.status.setText(limited
+                        ? getString(R.string.refresh_rate_up_to, RefreshUtils.getReducedRateHz())
+                        : getString(R.string.refresh_limit_off));
+                viewHolder.preference.setTag(RefreshUtils.KEY_BATTERY_SAVER_LIMIT);
+                viewHolder.preference.setChecked(limited);
+            } else if (position == 3) {
+                SwitchPrefViewHolder viewHolder = (SwitchPrefViewHolder) holder;
+                viewHolder.title.setText(R.string.refresh_title_low_battery_limit);
+                viewHolder.rootView.setOnClickListener(v -> showLowBatteryLevels());
+                viewHolder.icon.setImageResource(R.drawable.ic_refresh_60);
+
+                int level = mRefreshUtils.getLowBatteryLevel();
+                viewHolder.status.setText(level > 0
+                        ? getString(R.string.refresh_low_battery_summary, level,
+                                RefreshUtils.getReducedRateHz())
+                        : getString(R.string.refresh_limit_off));
+                viewHolder.preference.setTag(RefreshUtils.KEY_LOW_BATTERY_LEVEL);
+                viewHolder.preference.setChecked(level > 0);
+            }
+        }
+
+        private void showLowBatteryLevels() {
+            final int[] levels = RefreshUtils.LOW_BATTERY_LEVELS;
+            final CharSequence[] names = new CharSequence[levels.length];
+            int checked = -1;
+            for (int i = 0; i < levels.length; i++) {
+                names[i] = getString(R.string.refresh_battery_level, levels[i]);
+                if (levels[i] == mRefreshUtils.getLowBatteryLevel()) {
+                    checked = i;
+                }
             }
+            new AlertDialog.Builder(getActivity())
+                    .setTitle(R.string.refresh_title_low_battery_limit)
+                    .setSingleChoiceItems(names, checked, (dialog, which) -> {
+                        mRefreshUtils.setLowBatteryLevel(levels[which]);
+                        notifyDataSetChanged();
+                        dialog.dismiss();
+                    })
+                    .setNegativeButton(android.R.string.cancel, null)
+                    .show();
         }
 
         @Override
@@ -492,6 +636,13 @@ public class RefreshSettingsFragment extends PreferenceFragment
                 case RefreshUtils.KEY_MIN_REFRESH_RATE:
                     mRefreshUtils.set30HzAsMinFPS(((Switch) pref).isChecked());
                     break;
+                case RefreshUtils.KEY_BATTERY_SAVER_LIMIT:
+                    mRefreshUtils.setBatterySaverLimited(((Switch) pref).isChecked());
+                    break;
+                case RefreshUtils.KEY_LOW_BATTERY_LEVEL:
+                    mRefreshUtils.setLowBatteryLevel(((Switch) pref).isChecked()
+                            ? RefreshUtils.LOW_BATTERY_LEVEL_DEFAULT : 0);
+                    break;
             };
             notifyDataSetChanged();
         }
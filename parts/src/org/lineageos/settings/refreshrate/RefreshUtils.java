@@ -16,27 +16,82 @@
 
 package org.lineageos.settings.refreshrate;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.database.ContentObserver;
+import android.hardware.display.DisplayManager;
 import android.os.UserHandle;
+import android.view.Display;
 
 import android.provider.Settings;
 
 import androidx.preference.PreferenceManager;
 
+import org.lineageos.settings.utils.AppClassifier;
+import org.lineageos.settings.utils.ProfileStore;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
 public final class RefreshUtils {
 
     private static final String REFRESH_CONTROL = "refresh_control";
 
-    private static float defaultMaxRate;
-    private static float defaultMinRate;
+    // Read without locking, replaced as a whole under sApplyLock
+    private static final AtomicReference<RefreshPolicy> sPolicy = new AtomicReference<>();
+    // Serializes settings writes with each other and with the observer
+    private static final Object sApplyLock = new Object();
+    private static ContentObserver sRatesObserver;
+    // Keeps the baseline and the last written rates across process restarts
+    private static SharedPreferences sPolicyPrefs;
+    private static final AtomicLong sWrites = new AtomicLong();
+    private static final AtomicLong sSkippedWrites = new AtomicLong();
+    private static final AtomicLong sExternalChanges = new AtomicLong();
+
+    // Display mode switches within this long after a settings transaction
+    // are put down to it
+    private static final long SWITCH_WINDOW_NS = 1000 * 1000 * 1000L;
+    // Transactions by the number of mode switches they caused, the last
+    // bucket counts everything above. Guarded by sSwitchLock.
+    private static final Object sSwitchLock = new Object();
+    private static final long[] sSwitchesPerTransaction = new long[4];
+    private static long sTransactionTime;
+    private static int sTransactionSwitches = -1;
+    private static long sOtherSwitches;
+
     private static final String KEY_PEAK_REFRESH_RATE = "peak_refresh_rate";
     static final String KEY_MIN_REFRESH_RATE = "min_refresh_rate";
+
+    private static final String KEY_BASELINE_PEAK = "refresh_baseline_peak";
+    private static final String KEY_BASELINE_MIN = "refresh_baseline_min";
+    private static final String KEY_APPLIED_PEAK = "refresh_applied_peak";
+    private static final String KEY_APPLIED_MIN = "refresh_applied_min";
+
+    static final String KEY_BATTERY_SAVER_LIMIT = "refresh_battery_saver_limit";
+    static final String KEY_LOW_BATTERY_LEVEL = "refresh_low_battery_level";
+    // Battery levels offered as the low battery threshold, 0 turns it off
+    static final int[] LOW_BATTERY_LEVELS = { 5, 10, 15, 20, 30 };
+    static final int LOW_BATTERY_LEVEL_DEFAULT = 15;
+
+    // Last battery state seen by the service. Guarded by sPowerLock.
+    private static final Object sPowerLock = new Object();
+    private static int sBatteryLevel = 100;
+    private static boolean sCharging;
+    private static boolean sPowerSave;
     private Context mContext;
-    protected static boolean isAppInList = false;
 
+    // An activity without a profile of its own, it uses the one of its app
+    protected static final int STATE_INHERIT = -1;
     protected static final int STATE_DEFAULT = 0;
+    // Legacy profiles, upgraded to rates when the store is opened
     protected static final int STATE_STANDARD = 1;
     protected static final int STATE_EXTREME = 2;
 
@@ -44,112 +99,494 @@ public final class RefreshUtils {
     private static final float REFRESH_STATE_STANDARD = 60f;
     private static final float REFRESH_STATE_EXTREME = 120f;
 
-    private static final String REFRESH_STANDARD = "refresh.standard=";
-    private static final String REFRESH_EXTREME = "refresh.extreme=";
+    // Any other profile is RATE_FLAG | peak << 8 | min in whole Hz, where a
+    // min of 0 keeps the user's minimum
+    private static final int RATE_FLAG = 1 << 16;
+
+    // Refresh rates of the panel at its current resolution, ascending
+    private static volatile float[] sSupportedRates;
 
     private SharedPreferences mSharedPrefs;
 
+    // Package name or component key to STATE_*
+    private final ProfileStore mProfiles;
+    // Suggests profiles for apps without one, none if null
+    private AppClassifier mClassifier;
+
     protected RefreshUtils(Context context) {
         mSharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
         mContext = context;
+        mProfiles = ProfileStore.get(context, REFRESH_CONTROL);
+        mProfiles.migrate(mSharedPrefs, REFRESH_CONTROL, STATE_STANDARD);
+        upgradeLegacyStates(mProfiles);
+        loadSupportedRates(context);
+        startObservingRates(context.getContentResolver(), mSharedPrefs);
     }
 
-    public static void startService(Context context) {
-        context.startServiceAsUser(new Intent(context, RefreshService.class),
-                UserHandle.CURRENT);
+    /**
+     * @return a profile asking for the given rates
+     *
+     * @param minHz 0 to keep the user's minimum
+     */
+    static int encodeRates(int peakHz, int minHz) {
+        return RATE_FLAG | (peakHz & 0xff) << 8 | (minHz & 0xff);
     }
 
-    private void writeValue(String profiles) {
-        mSharedPrefs.edit().putString(REFRESH_CONTROL, profiles).apply();
+    static boolean isRates(int state) {
+        return (state & RATE_FLAG) != 0;
     }
 
-    protected void getOldRate() {
-        defaultMaxRate = Settings.System.getFloat(mContext.getContentResolver(), KEY_PEAK_REFRESH_RATE, 60);
-        defaultMinRate = Settings.System.getFloat(mContext.getContentResolver(), KEY_MIN_REFRESH_RATE, 60);
+    static int peakOf(int state) {
+        return (state >> 8) & 0xff;
     }
 
+    static int minOf(int state) {
+        return state & 0xff;
+    }
 
-    private String getValue() {
-        String value = mSharedPrefs.getString(REFRESH_CONTROL, null);
+    private static void upgradeLegacyStates(ProfileStore profiles) {
+        final HashMap<String, Integer> upgraded = new HashMap<>();
+        for (Map.Entry<String, Integer> entry : profiles.getAll().entrySet()) {
+            if (entry.getValue() == STATE_STANDARD) {
+                upgraded.put(entry.getKey(), encodeRates((int) REFRESH_STATE_STANDARD, 0));
+            } else if (entry.getValue() == STATE_EXTREME) {
+                upgraded.put(entry.getKey(), encodeRates((int) REFRESH_STATE_EXTREME, 0));
+            }
+        }
+        if (!upgraded.isEmpty()) {
+            profiles.putAll(upgraded);
+        }
+    }
 
-        if (value == null || value.isEmpty()) {
-            value = REFRESH_STANDARD + ":" + REFRESH_EXTREME;
-            writeValue(value);
+    /**
+     * Enumerates the display modes once per process
+     */
+    private static synchronized void loadSupportedRates(Context context) {
+        if (sSupportedRates != null) {
+            return;
+        }
+        final TreeSet<Float> rates = new TreeSet<>();
+        final DisplayManager displayManager = context.getSystemService(DisplayManager.class);
+        final Display display = displayManager != null
+                ? displayManager.getDisplay(Display.DEFAULT_DISPLAY) : null;
+        if (display != null) {
+            final Display.Mode current = display.getMode();
+            for (Display.Mode mode : display.getSupportedModes()) {
+                if (mode.getPhysicalWidth() == current.getPhysicalWidth()
+                        && mode.getPhysicalHeight() == current.getPhysicalHeight()) {
+                    rates.add(mode.getRefreshRate());
+                }
+            }
+        }
+        if (rates.isEmpty()) {
+            rates.add(REFRESH_STATE_STANDARD);
+            rates.add(REFRESH_STATE_EXTREME);
         }
-        return value;
+        final float[] supported = new float[rates.size()];
+        int i = 0;
+        for (float rate : rates) {
+            supported[i++] = rate;
+        }
+        sSupportedRates = supported;
     }
 
-    protected void writePackage(String packageName, int mode) {
-        String value = getValue();
-        value = value.replace(packageName + ",", "");
-        String[] modes = value.split(":");
-        String finalString;
+    /**
+     * @return the exact rate of the mode closest to the given whole Hz, as
+     * modes like 59.94 Hz must not be excluded by a rounded minimum
+     */
+    private static float modeRate(int hz) {
+        float best = hz;
+        float distance = Float.MAX_VALUE;
+        for (float rate : sSupportedRates) {
+            if (Math.abs(rate - hz) < distance) {
+                distance = Math.abs(rate - hz);
+                best = rate;
+            }
+        }
+        return distance < 1f ? best : hz;
+    }
+
+    /**
+     * @return STATE_DEFAULT followed by the profiles offered for every
+     * supported rate, fastest first: up to that rate, and fixed at it
+     */
+    int[] getRateChoices() {
+        final float[] rates = sSupportedRates;
+        final int[] choices = new int[1 + rates.length * 2];
+        choices[0] = STATE_DEFAULT;
+        for (int i = 0; i < rates.length; i++) {
+            final int hz = Math.round(rates[rates.length - 1 - i]);
+            choices[1 + i * 2] = encodeRates(hz, 0);
+            choices[2 + i * 2] = encodeRates(hz, hz);
+        }
+        return choices;
+    }
+
+    /**
+     * Sets up the policy once per process and keeps it up to date from then
+     * on, so that neither lookups nor redundant writes cost an IPC
+     */
+    private static synchronized void startObservingRates(ContentResolver resolver,
+            SharedPreferences prefs) {
+        if (sRatesObserver != null) {
+            return;
+        }
+        sPolicyPrefs = prefs;
+        // Delivered on a binder thread
+        sRatesObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                // Under the lock, so that our own writes are never seen half done
+                synchronized (sApplyLock) {
+                    final float peak = Settings.System.getFloat(resolver,
+                            KEY_PEAK_REFRESH_RATE, 60);
+                    final float min = Settings.System.getFloat(resolver,
+                            KEY_MIN_REFRESH_RATE, 60);
+                    final RefreshPolicy policy = sPolicy.get();
+                    if (policy == null) {
+                        // Not set up yet, which reads the settings afterwards
+                        return;
+                    }
+                    // Anything but the echo of our own writes comes from the user
+                    if (peak != policy.appliedPeak || min != policy.appliedMin) {
+                        sExternalChanges.incrementAndGet();
+                        setPolicy(policy.withExternalChange(peak, min));
+                    }
+                }
+            }
+        };
+        // Registered first, so that no change between the two steps is missed
+        resolver.registerContentObserver(Settings.System.getUriFor(KEY_PEAK_REFRESH_RATE),
+                false, sRatesObserver);
+        resolver.registerContentObserver(Settings.System.getUriFor(KEY_MIN_REFRESH_RATE),
+                false, sRatesObserver);
+        synchronized (sApplyLock) {
+            // Puts the baseline back right away if a profile's rates were left
+            write(resolver, restorePolicy(
+                    Settings.System.getFloat(resolver, KEY_PEAK_REFRESH_RATE, 60),
+                    Settings.System.getFloat(resolver, KEY_MIN_REFRESH_RATE, 60)));
+        }
+    }
+
+    /**
+     * @return the policy for the given settings at process start. The rates
+     * last written by us may be a profile's, left behind if the process died
+     * while it applied, so they only become the baseline if the user changed
+     * them since.
+     */
+    private static RefreshPolicy restorePolicy(float peak, float min) {
+        if (sPolicyPrefs.contains(KEY_BASELINE_PEAK)
+                && peak == sPolicyPrefs.getFloat(KEY_APPLIED_PEAK, Float.NaN)
+                && min == sPolicyPrefs.getFloat(KEY_APPLIED_MIN, Float.NaN)) {
+            return RefreshPolicy.restore(sPolicyPrefs.getFloat(KEY_BASELINE_PEAK, peak),
+                    sPolicyPrefs.getFloat(KEY_BASELINE_MIN, min), peak, min);
+        }
+        return RefreshPolicy.fromSettings(peak, min);
+    }
+
+    /**
+     * Swaps in the given policy and stores what changed of its baseline and
+     * applied rates. Called with sApplyLock held.
+     */
+    private static void setPolicy(RefreshPolicy policy) {
+        final RefreshPolicy old = sPolicy.getAndSet(policy);
+        if (old != null && old.baselinePeak == policy.baselinePeak
+                && old.baselineMin == policy.baselineMin
+                && old.appliedPeak == policy.appliedPeak
+                && old.appliedMin == policy.appliedMin) {
+            return;
+        }
+        sPolicyPrefs.edit()
+                .putFloat(KEY_BASELINE_PEAK, policy.baselinePeak)
+                .putFloat(KEY_BASELINE_MIN, policy.baselineMin)
+                .putFloat(KEY_APPLIED_PEAK, policy.appliedPeak)
+                .putFloat(KEY_APPLIED_MIN, policy.appliedMin)
+                .apply();
+    }
+
+    /**
+     * Swaps in the policy made by the given change and writes its target,
+     * skipping settings which already hold it. A change which leaves the
+     * policy as it is neither locks nor writes.
+     */
+    private void apply(UnaryOperator<RefreshPolicy> change) {
+        final RefreshPolicy current = sPolicy.get();
+        if (change.apply(current) == current && current.isApplied()) {
+            sSkippedWrites.addAndGet(2);
+            return;
+        }
+
+        synchronized (sApplyLock) {
+            write(mContext.getContentResolver(), change.apply(sPolicy.get()));
+        }
+    }
+
+    /**
+     * Writes the target of the given policy and swaps it in. Called with
+     * sApplyLock held.
+     */
+    private static void write(ContentResolver resolver, RefreshPolicy policy) {
+        final boolean writeMin = policy.appliedMin != policy.targetMin();
+        final boolean writePeak = policy.appliedPeak != policy.targetPeak();
+        if (writeMin || writePeak) {
+            onTransaction();
+        }
+        // The display may switch modes after either write, so the state in
+        // between must already allow the target mode. Raising or lowering
+        // the peak first keeps [old min, new peak] within the target
+        // range, unless the new peak is below the old min, in which case
+        // lowering the min first keeps [new min, old peak] valid instead.
+        if (policy.targetPeak() < policy.appliedMin) {
+            putRate(resolver, KEY_MIN_REFRESH_RATE, policy.targetMin(), writeMin);
+            putRate(resolver, KEY_PEAK_REFRESH_RATE, policy.targetPeak(), writePeak);
+        } else {
+            putRate(resolver, KEY_PEAK_REFRESH_RATE, policy.targetPeak(), writePeak);
+            putRate(resolver, KEY_MIN_REFRESH_RATE, policy.targetMin(), writeMin);
+        }
+        setPolicy(policy.applied());
+    }
+
+    private static void putRate(ContentResolver resolver, String key, float rate,
+            boolean changed) {
+        if (changed) {
+            Settings.System.putFloat(resolver, key, rate);
+            sWrites.incrementAndGet();
+        } else {
+            sSkippedWrites.incrementAndGet();
+        }
+    }
+
+    private static void onTransaction() {
+        synchronized (sSwitchLock) {
+            if (sTransactionSwitches >= 0) {
+                sSwitchesPerTransaction[Math.min(sTransactionSwitches,
+                        sSwitchesPerTransaction.length - 1)]++;
+            }
+            sTransactionTime = System.nanoTime();
+            sTransactionSwitches = 0;
+        }
+    }
 
-        switch (mode) {
-            case STATE_STANDARD:
-                modes[0] = modes[0] + packageName + ",";
-                break;
-            case STATE_EXTREME:
-                modes[1] = modes[1] + packageName + ",";
-                break;
+    /**
+     * Counts a refresh rate change of the default display, put down to the
+     * last settings transaction if it came shortly after it
+     */
+    static void onDisplayModeChanged() {
+        synchronized (sSwitchLock) {
+            if (sTransactionSwitches >= 0
+                    && System.nanoTime() - sTransactionTime < SWITCH_WINDOW_NS) {
+                sTransactionSwitches++;
+            } else {
+                sOtherSwitches++;
+            }
         }
+    }
+
+    public static void startService(Context context) {
+        context.startServiceAsUser(new Intent(context, RefreshService.class),
+                UserHandle.CURRENT);
+    }
 
-        finalString = modes[0] + ":" + modes[1];
+    /**
+     * Lets apps without a profile of their own use the one suggested for
+     * their kind of app
+     */
+    void setClassifier(AppClassifier classifier) {
+        mClassifier = classifier;
+    }
 
-        writeValue(finalString);
+    /**
+     * @param mode STATE_DEFAULT or rates from {@link #encodeRates}, stored even
+     *             for STATE_DEFAULT so that it wins over a suggested profile,
+     *             or STATE_INHERIT to drop the choice
+     */
+    protected void writePackage(String packageName, int mode) {
+        if (mode == STATE_DEFAULT || isRates(mode)) {
+            mProfiles.put(packageName, mode);
+        } else {
+            mProfiles.remove(packageName);
+        }
     }
 
     protected int getStateForPackage(String packageName) {
-        String value = getValue();
-        String[] modes = value.split(":");
-        int state = STATE_DEFAULT;
-        if (modes[0].contains(packageName + ",")) {
-            state = STATE_STANDARD;
-        } else if (modes[1].contains(packageName + ",")) {
-            state = STATE_EXTREME;
+        final int state = mProfiles.get(packageName, STATE_INHERIT);
+        return state != STATE_INHERIT ? state : getSuggestedState(packageName);
+    }
+
+    private int getSuggestedState(String packageName) {
+        if (mClassifier == null) {
+            return STATE_DEFAULT;
+        }
+        switch (mClassifier.getAppClass(packageName)) {
+            case AppClassifier.CLASS_GAME:
+                return encodeRates(Math.round(sSupportedRates[sSupportedRates.length - 1]), 0);
+            case AppClassifier.CLASS_VIDEO:
+                // Video rarely goes beyond 60 fps
+                return encodeRates((int) REFRESH_STATE_STANDARD, 0);
+            default:
+                return STATE_DEFAULT;
         }
-        return state;
+    }
+
+    /**
+     * Gives a single activity its own profile. Unlike for packages,
+     * STATE_DEFAULT is stored, it overrides whatever the app uses.
+     *
+     * @param mode STATE_DEFAULT, rates from {@link #encodeRates}, or
+     *             STATE_INHERIT to go back to the app's profile
+     */
+    protected void writeComponent(String packageName, String className, int mode) {
+        final String key = ProfileStore.componentKey(packageName, className);
+        if (mode == STATE_DEFAULT || isRates(mode)) {
+            mProfiles.put(key, mode);
+        } else {
+            mProfiles.remove(key);
+        }
+    }
+
+    /**
+     * @return the profile of the given activity, or the one of its package
+     */
+    protected int getStateForComponent(String packageName, String className) {
+        final int state = mProfiles.get(packageName, className, STATE_INHERIT);
+        return state != STATE_INHERIT ? state : getSuggestedState(packageName);
+    }
+
+    /**
+     * @return class name to STATE_* of the activities with their own profile
+     */
+    protected Map<String, Integer> getComponentStates(String packageName) {
+        return mProfiles.getComponents(packageName);
     }
 
     protected void setRefreshRate(String packageName) {
-        String value = getValue();
-        String modes[];
-        float maxrate = defaultMaxRate;
-        float minrate = defaultMinRate;
-        isAppInList = false;
-
-        if (value != null) {
-            modes = value.split(":");
-
-            if (modes[0].contains(packageName + ",")) {
-                maxrate = REFRESH_STATE_STANDARD;
-                if (minrate > maxrate) {
-                    minrate = maxrate;
-                }
-                isAppInList = true;
-            } else if (modes[1].contains(packageName + ",")) {
-                maxrate = REFRESH_STATE_EXTREME;
-                if (minrate > maxrate) {
-                    minrate = maxrate;
-                }
-                isAppInList = true;
-            }
+        setRefreshRate(packageName, null);
+    }
+
+    /**
+     * @param className the foreground activity, or null to only use the
+     *                  package's profile
+     */
+    protected void setRefreshRate(String packageName, String className) {
+        final int state = getStateForComponent(packageName, className);
+        final float peak = isRates(state) ? modeRate(peakOf(state)) : Float.NaN;
+        final float min = isRates(state) && minOf(state) != 0
+                ? modeRate(minOf(state)) : Float.NaN;
+        apply(policy -> policy.withOverride(peak, min));
+    }
+
+    /**
+     * @return whether the profile of the given activity lets the rate go up
+     * to more than the idle rate, so that lowering it while idle saves power
+     */
+    boolean canDownshiftWhenIdle(String packageName, String className) {
+        final int state = getStateForComponent(packageName, className);
+        // A fixed rate was asked for explicitly, leave it alone
+        return isRates(state) && minOf(state) == 0 && modeRate(peakOf(state)) > getReducedRate();
+    }
+
+    /**
+     * @return the rate used to save power: the standard rate if the panel
+     * has it, its lowest one otherwise
+     */
+    private static float getReducedRate() {
+        final float standard = modeRate((int) REFRESH_STATE_STANDARD);
+        return Arrays.binarySearch(sSupportedRates, standard) >= 0
+                ? standard : sSupportedRates[0];
+    }
+
+    static int getReducedRateHz() {
+        return Math.round(getReducedRate());
+    }
+
+    /**
+     * Caps the peak rate at the idle rate while the foreground app is idle.
+     * The cap goes away with the next profile switch as well.
+     */
+    void setIdle(boolean idle) {
+        final float peak = idle ? getReducedRate() : Float.NaN;
+        apply(policy -> policy.withIdlePeak(peak));
+    }
+
+    /**
+     * Takes the latest battery state. Only a change which crosses one of the
+     * thresholds touches the settings, the rest ends at comparing policies.
+     *
+     * @param level battery level in percent
+     */
+    void setPowerState(int level, boolean charging, boolean powerSave) {
+        synchronized (sPowerLock) {
+            sBatteryLevel = level;
+            sCharging = charging;
+            sPowerSave = powerSave;
+            updatePowerLimit();
         }
-        Settings.System.putFloat(mContext.getContentResolver(), KEY_MIN_REFRESH_RATE, minrate);
-        Settings.System.putFloat(mContext.getContentResolver(), KEY_PEAK_REFRESH_RATE, maxrate);
+    }
+
+    boolean isBatterySaverLimited() {
+        return mSharedPrefs.getBoolean(KEY_BATTERY_SAVER_LIMIT, true);
+    }
+
+    void setBatterySaverLimited(boolean limited) {
+        mSharedPrefs.edit().putBoolean(KEY_BATTERY_SAVER_LIMIT, limited).apply();
+        synchronized (sPowerLock) {
+            updatePowerLimit();
+        }
+    }
+
+    /**
+     * @return the battery level at or below which the rate is limited while
+     * not charging, 0 if never
+     */
+    int getLowBatteryLevel() {
+        return mSharedPrefs.getInt(KEY_LOW_BATTERY_LEVEL, LOW_BATTERY_LEVEL_DEFAULT);
+    }
+
+    void setLowBatteryLevel(int level) {
+        mSharedPrefs.edit().putInt(KEY_LOW_BATTERY_LEVEL, level).apply();
+        synchronized (sPowerLock) {
+            updatePowerLimit();
+        }
+    }
+
+    /**
+     * Caps whatever profile is in effect at the reduced rate while the
+     * battery state asks for it. Called with sPowerLock held.
+     */
+    private void updatePowerLimit() {
+        final int lowLevel = getLowBatteryLevel();
+        final boolean limit = (sPowerSave && isBatterySaverLimited())
+                || (!sCharging && lowLevel > 0 && sBatteryLevel <= lowLevel);
+        final float peak = limit ? getReducedRate() : Float.NaN;
+        apply(policy -> policy.withPowerPeak(peak));
     }
 
     void resetUserDefault(){
-        Settings.System.putFloat(mContext.getContentResolver(), KEY_MIN_REFRESH_RATE, defaultMinRate);
-        Settings.System.putFloat(mContext.getContentResolver(), KEY_PEAK_REFRESH_RATE, defaultMaxRate);
+        apply(policy -> policy.withOverride(Float.NaN, Float.NaN));
     }
 
     boolean is30HzAsMinFPS() {
-        return Settings.System.getFloat(mContext.getContentResolver(), KEY_MIN_REFRESH_RATE, 60) == 30f;
+        return sPolicy.get().baselineMin == 30f;
     }
 
     void set30HzAsMinFPS(boolean yes) {
-        defaultMinRate = yes ? 30f : 60f;
-        Settings.System.putFloat(mContext.getContentResolver(), KEY_MIN_REFRESH_RATE, defaultMinRate);
+        apply(policy -> policy.withBaselineMin(yes ? 30f : 60f));
+    }
+
+    static void dump(PrintWriter pw) {
+        pw.println("Refresh policy: " + sPolicy.get());
+        pw.println("  supported rates=" + Arrays.toString(sSupportedRates));
+        synchronized (sPowerLock) {
+            pw.println("  battery level=" + sBatteryLevel + " charging=" + sCharging
+                    + " power save=" + sPowerSave);
+        }
+        pw.println("  writes=" + sWrites.get() + " skipped=" + sSkippedWrites.get()
+                + " external changes=" + sExternalChanges.get());
+        synchronized (sSwitchLock) {
+            pw.println("  mode switches per transaction: 0=" + sSwitchesPerTransaction[0]
+                    + " 1=" + sSwitchesPerTransaction[1] + " 2=" + sSwitchesPerTransaction[2]
+                    + " 3+=" + sSwitchesPerTransaction[3] + " (last: " + sTransactionSwitches
+                    + "), unrelated switches=" + sOtherSwitches);
+        }
     }
 }
\ No newline at end of file
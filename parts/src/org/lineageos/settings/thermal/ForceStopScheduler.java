@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.thermal;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.SuspendDialogInfo;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.lineageos.settings.R;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Force-stops or freezes packages after a grace period, one at a time.
+ *
+ * Stops requested at screen off only happen once the screen stayed off for
+ * the grace period, so quick on/off toggles do not kill anything, and are
+ * spaced out on a background thread instead of running back to back.
+ *
+ * Freezing suspends the package, which stops its activities and lets the
+ * cached app freezer take its processes, while keeping them around for a
+ * cheap return. Frozen packages are thawed at unlock, or force-stopped and
+ * unsuspended if the device stays locked for too long, whether the screen
+ * turned on meanwhile or not.
+ */
+final class ForceStopScheduler {
+    private static final String TAG = "ForceStopScheduler";
+
+    private static final int MAX_RECORDS = 32;
+
+    private final ActivityManager mActivityManager;
+    private final long mGraceMs;
+    private final long mSpacingMs;
+    private final long mFreezeTimeoutMs;
+    private final PackageManager mPackageManager;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Runnable mStopNext = this::stopNext;
+    private final Runnable mStopFrozen = this::stopFrozen;
+
+    // Only touched on the scheduler thread, values tell whether to freeze
+    private final LinkedHashMap<String, Boolean> mPending = new LinkedHashMap<>();
+    private final HashSet<String> mFrozen = new HashSet<>();
+
+    // Ring of what was stopped or frozen when, in wall clock time
+    private final String[] mRecordPackages = new String[MAX_RECORDS];
+    private final boolean[] mRecordFrozen = new boolean[MAX_RECORDS];
+    private final long[] mRecordTimes = new long[MAX_RECORDS];
+    private int mRecordHead;
+    private long mStopped;
+    private long mFrozenCount;
+    private long mCancelled;
+
+    ForceStopScheduler(Context context, ActivityManager am) {
+        mActivityManager = am;
+        mGraceMs = context.getResources().getInteger(R.integer.config_forceStopGraceMs);
+        mSpacingMs = context.getResources().getInteger(R.integer.config_forceStopSpacingMs);
+        mFreezeTimeoutMs = context.getResources().getInteger(
+                R.integer.config_freezeStopTimeoutMs);
+        mPackageManager = context.getPackageManager();
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Force-stops or freezes the package once the grace period has passed,
+     * unless {@link #cancelAll} is called before
+     */
+    void schedule(String packageName, boolean freeze) {
+        mHandler.post(() -> {
+            final boolean first = mPending.isEmpty();
+            if (mPending.put(packageName, freeze) == null && first) {
+                mHandler.postDelayed(mStopNext, mGraceMs);
+            }
+        });
+    }
+
+    /**
+     * Unsuspends the given packages and everything frozen since, e.g. at
+     * unlock. Also meant for startup, suspension outlives our process.
+     */
+    void thaw(Collection<String> packageNames) {
+        mHandler.postAtFrontOfQueue(() -> {
+            mHandler.removeCallbacks(mStopFrozen);
+            final HashSet<String> thaw = new HashSet<>(packageNames);
+            thaw.addAll(mFrozen);
+            mFrozen.clear();
+            if (!thaw.isEmpty()) {
+                setSuspended(thaw.toArray(new String[0]), false);
+            }
+        });
+    }
+
+    /**
+     * Drops all stops which did not happen yet. Frozen packages stay frozen
+     * until unlock or their timeout.
+     */
+    void cancelAll() {
+        mHandler.postAtFrontOfQueue(() -> {
+            if (!mPending.isEmpty()) {
+                Log.i(TAG, "Cancelled stopping " + mPending.keySet());
+                mCancelled += mPending.size();
+                mPending.clear();
+            }
+            mHandler.removeCallbacks(mStopNext);
+        });
+    }
+
+    void quit() {
+        mThread.quitSafely();
+    }
+
+    private void stopNext() {
+        final Iterator<Map.Entry<String, Boolean>> it = mPending.entrySet().iterator();
+        if (!it.hasNext()) {
+            return;
+        }
+        final Map.Entry<String, Boolean> next = it.next();
+        final String packageName = next.getKey();
+        final boolean freeze = next.getValue();
+        it.remove();
+
+        final long start = SystemClock.elapsedRealtime();
+        // Falls back to a force-stop if the package cannot be suspended
+        final boolean frozen = freeze && setSuspended(new String[] { packageName }, true);
+        if (frozen) {
+            Log.i(TAG, packageName + " was frozen in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms.");
+            mFrozen.add(packageName);
+            // The timeout runs from the first freeze since the last one ran
+            if (!mHandler.hasCallbacks(mStopFrozen)) {
+                mHandler.postDelayed(mStopFrozen, mFreezeTimeoutMs);
+            }
+        } else {
+            mActivityManager.forceStopPackage(packageName);
+            Log.i(TAG, packageName + " was stopped in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms.");
+        }
+        record(packageName, frozen);
+
+        if (!mPending.isEmpty()) {
+            mHandler.postDelayed(mStopNext, mSpacingMs);
+        }
+    }
+
+    private void stopFrozen() {
+        // Still locked after all this time, do not keep them around any longer
+        for (String packageName : mFrozen) {
+            mActivityManager.forceStopPackage(packageName);
+            Log.i(TAG, packageName + " was stopped after being frozen for too long.");
+            record(packageName, false);
+        }
+        // Stopped for good, nothing left to thaw at unlock
+        if (!mFrozen.isEmpty()) {
+            setSuspended(mFrozen.toArray(new String[0]), false);
+            mFrozen.clear();
+        }
+    }
+
+    /**
+     * @return true on success
+     */
+    private boolean setSuspended(String[] packageNames, boolean suspended) {
+        try {
+            final String[] failed = mPackageManager.setPackagesSuspended(packageNames,
+                    suspended, null, null, (SuspendDialogInfo) null);
+            if (failed != null && failed.length > 0) {
+                Log.w(TAG, "Could not " + (suspended ? "suspend " : "unsuspend ")
+                        + Arrays.toString(failed));
+                return false;
+            }
+            return true;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not " + (suspended ? "suspend " : "unsuspend ")
+                    + Arrays.toString(packageNames), e);
+            return false;
+        }
+    }
+
+    private synchronized void record(String packageName, boolean frozen) {
+        mRecordPackages[mRecordHead] = packageName;
+        mRecordFrozen[mRecordHead] = frozen;
+        mRecordTimes[mRecordHead] = System.currentTimeMillis();
+        mRecordHead = (mRecordHead + 1) % MAX_RECORDS;
+        if (frozen) mFrozenCount++; else mStopped++;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("  force stops: stopped=" + mStopped + " frozen=" + mFrozenCount
+                + " cancelled=" + mCancelled + " grace=" + mGraceMs + "ms spacing="
+                + mSpacingMs + "ms freeze timeout=" + mFreezeTimeoutMs + "ms");
+        final SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US);
+        for (int i = 0; i < MAX_RECORDS; i++) {
+            final int index = (mRecordHead + i) % MAX_RECORDS;
+            if (mRecordPackages[index] != null) {
+                pw.println("    " + format.format(new Date(mRecordTimes[index]))
+                        + (mRecordFrozen[index] ? " froze " : " stopped ")
+                        + mRecordPackages[index]);
+            }
+        }
+    }
+}
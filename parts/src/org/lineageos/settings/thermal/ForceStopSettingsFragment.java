@@ -27,7 +27,10 @@ import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.ImageView;
+import android.widget.Spinner;
 import android.widget.Switch;
 import android.widget.TextView;
 
@@ -238,6 +241,7 @@ public class ForceStopSettingsFragment extends PreferenceFragment
         private ImageView icon;
         private View rootView;
         private Switch preference;
+        private Spinner mode;
 
         private AppViewHolder(View view) {
             super(view);
@@ -245,6 +249,7 @@ public class ForceStopSettingsFragment extends PreferenceFragment
             this.status = view.findViewById(R.id.app_status);
             this.icon = view.findViewById(R.id.app_icon);
             this.preference = view.findViewById(R.id.preference);
+            this.mode = view.findViewById(R.id.app_stop_mode);
             this.rootView = view;
 
             view.setTag(this);
@@ -252,7 +257,7 @@ public class ForceStopSettingsFragment extends PreferenceFragment
     }
 
     private class UserPackagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
-            implements View.OnClickListener {
+            implements View.OnClickListener, AdapterView.OnItemSelectedListener {
 
         private List<ApplicationsState.AppEntry> mEntries = new ArrayList<>();
 
@@ -275,8 +280,11 @@ public class ForceStopSettingsFragment extends PreferenceFragment
                 return holder;
             }
             AppViewHolder holder = new AppViewHolder(LayoutInflater.from(parent.getContext())
-                    .inflate(R.layout.list_switchpref_item, parent, false));
+                    .inflate(R.layout.forcestop_list_item, parent, false));
             holder.preference.setOnClickListener(this);
+            holder.mode.setAdapter(ArrayAdapter.createFromResource(parent.getContext(),
+                    R.array.forcestop_mode_entries, android.R.layout.simple_spinner_dropdown_item));
+            holder.mode.setOnItemSelectedListener(this);
             return holder;
         }
 
@@ -301,9 +309,15 @@ public class ForceStopSettingsFragment extends PreferenceFragment
             appViewHolder.icon.setImageDrawable(entry.icon);
 
             boolean packageState = mThermalUtils.getForceStopStateForPackage(entry.info.packageName);
-            appViewHolder.status.setText(packageState ? R.string.forcestop_enabled : R.string.forcestop_disabled);
+            appViewHolder.status.setText(R.string.forcestop_disabled);
+            appViewHolder.status.setVisibility(packageState ? View.GONE : View.VISIBLE);
             appViewHolder.preference.setTag(entry);
             appViewHolder.preference.setChecked(packageState);
+            // Stop or freeze, only offered for apps on the list
+            appViewHolder.mode.setTag(entry);
+            appViewHolder.mode.setSelection(
+                    mThermalUtils.getFreezeStateForPackage(entry.info.packageName) ? 1 : 0, false);
+            appViewHolder.mode.setVisibility(packageState ? View.VISIBLE : View.GONE);
         }
 
         private void setEntries(List<ApplicationsState.AppEntry> entries) {
@@ -317,6 +331,19 @@ public class ForceStopSettingsFragment extends PreferenceFragment
             mThermalUtils.writeForceStopPackage(entry.info.packageName, ((Switch) pref).isChecked());
             notifyDataSetChanged();
         }
+
+        @Override
+        public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+            final ApplicationsState.AppEntry entry = (ApplicationsState.AppEntry) parent.getTag();
+            final boolean freeze = position == 1;
+            if (mThermalUtils.getFreezeStateForPackage(entry.info.packageName) != freeze) {
+                mThermalUtils.writeFreezePackage(entry.info.packageName, freeze);
+            }
+        }
+
+        @Override
+        public void onNothingSelected(AdapterView<?> parent) {
+        }
     }
 
     private class ExtraComponentsAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
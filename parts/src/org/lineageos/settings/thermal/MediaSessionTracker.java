@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.thermal;
+
+import android.media.session.MediaController;
+import android.media.session.MediaSession;
+import android.media.session.MediaSessionManager;
+import android.media.session.PlaybackState;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of which packages have an active media session, so that the
+ * screen off handling does not have to query and scan all sessions.
+ *
+ * Registers one callback per session for as long as the session exists.
+ * Everything runs on the given handler.
+ */
+final class MediaSessionTracker {
+    private static final String TAG = "MediaSessionTracker";
+    private static final boolean DEBUG = false;
+
+    interface Listener {
+        /**
+         * The given package no longer has any active media session
+         */
+        void onPlaybackStopped(String packageName);
+    }
+
+    private final MediaSessionManager mMediaSessionManager;
+    private final Handler mHandler;
+    private final Listener mListener;
+
+    private final HashMap<MediaSession.Token, SessionCallback> mSessions = new HashMap<>();
+    // Number of active sessions per package
+    private final HashMap<String, Integer> mActive = new HashMap<>();
+
+    private final MediaSessionManager.OnActiveSessionsChangedListener mSessionsListener =
+            this::onActiveSessionsChanged;
+
+    MediaSessionTracker(MediaSessionManager msm, Handler handler, Listener listener) {
+        mMediaSessionManager = msm;
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    void start() {
+        mMediaSessionManager.addOnActiveSessionsChangedListener(mSessionsListener, null,
+                mHandler);
+        mHandler.post(() ->
+                onActiveSessionsChanged(mMediaSessionManager.getActiveSessions(null)));
+    }
+
+    void stop() {
+        mMediaSessionManager.removeOnActiveSessionsChangedListener(mSessionsListener);
+        mHandler.post(() -> {
+            // Without telling the listener, nothing actually stopped playing
+            for (SessionCallback callback : mSessions.values()) {
+                callback.mController.unregisterCallback(callback);
+            }
+            mSessions.clear();
+            mActive.clear();
+        });
+    }
+
+    /**
+     * @return whether the package has a session which is neither paused nor
+     * stopped, to be called on the handler thread
+     */
+    boolean isActive(String packageName) {
+        return mActive.containsKey(packageName);
+    }
+
+    private static boolean isActive(PlaybackState state) {
+        if (state == null) {
+            return false;
+        }
+        final int playState = state.getState();
+        return playState != PlaybackState.STATE_PAUSED
+                && playState != PlaybackState.STATE_STOPPED;
+    }
+
+    private void onActiveSessionsChanged(List<MediaController> controllers) {
+        final HashMap<MediaSession.Token, MediaController> current = new HashMap<>();
+        if (controllers != null) {
+            for (MediaController controller : controllers) {
+                current.put(controller.getSessionToken(), controller);
+            }
+        }
+
+        final Iterator<Map.Entry<MediaSession.Token, SessionCallback>> it =
+                mSessions.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<MediaSession.Token, SessionCallback> entry = it.next();
+            if (current.remove(entry.getKey()) == null) {
+                entry.getValue().release();
+                it.remove();
+            }
+        }
+        for (Map.Entry<MediaSession.Token, MediaController> entry : current.entrySet()) {
+            final SessionCallback callback = new SessionCallback(entry.getValue());
+            mSessions.put(entry.getKey(), callback);
+            callback.update(entry.getValue().getPlaybackState());
+        }
+        if (DEBUG) Log.d(TAG, "Sessions: " + mSessions.size() + ", active: " + mActive.keySet());
+    }
+
+    private void setActive(String packageName, boolean active) {
+        if (active) {
+            mActive.merge(packageName, 1, Integer::sum);
+            return;
+        }
+        final Integer count = mActive.get(packageName);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            mActive.put(packageName, count - 1);
+        } else {
+            mActive.remove(packageName);
+            mListener.onPlaybackStopped(packageName);
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  media sessions: " + mSessions.size() + ", active: " + mActive);
+    }
+
+    private final class SessionCallback extends MediaController.Callback {
+        private final MediaController mController;
+        private boolean mActiveState;
+
+        SessionCallback(MediaController controller) {
+            mController = controller;
+            controller.registerCallback(this, mHandler);
+        }
+
+        void update(PlaybackState state) {
+            final boolean active = isActive(state);
+            if (active != mActiveState) {
+                mActiveState = active;
+                setActive(mController.getPackageName(), active);
+            }
+        }
+
+        void release() {
+            mController.unregisterCallback(this);
+            update(null);
+        }
+
+        @Override
+        public void onPlaybackStateChanged(PlaybackState state) {
+            update(state);
+        }
+
+        @Override
+        public void onSessionDestroyed() {
+            update(null);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.thermal;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.lineageos.settings.utils.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Foreground time and temperature change per package and thermal profile.
+ *
+ * Time is accounted in segments: a segment starts when a package comes to
+ * the foreground or its profile gets applied, and ends on the next such
+ * change or at screen off. Each segment adds its duration and the change
+ * of the hottest sampled zone between its start and end.
+ *
+ * Totals are kept in memory and written out as a whole from time to time.
+ */
+final class ThermalLedger {
+    private static final String TAG = "ThermalLedger";
+
+    private static final String FILE_NAME = "thermal_ledger.bin";
+    private static final int MAGIC = 0x58504c47; // "XPLG"
+    private static final int VERSION = 1;
+
+    private static final int STATES = ThermalUtils.STATE_STREAMING + 1;
+
+    private static ThermalLedger sInstance;
+
+    private final File mFile;
+    private final HashMap<String, Usage> mUsage = new HashMap<>();
+    private boolean mDirty;
+
+    private String mPackage;
+    private int mState;
+    private long mSince;
+    private int mStartTemp;
+
+    /**
+     * Totals of one package, indexed by ThermalUtils.STATE_*
+     */
+    static final class Usage {
+        final long[] millis = new long[STATES];
+        final int[] segments = new int[STATES];
+        // Sum and count of temperature changes, in millidegrees Celsius
+        final long[] tempDelta = new long[STATES];
+        final int[] tempSegments = new int[STATES];
+
+        /**
+         * @return the profile this package spent most time in, or
+         * ThermalUtils.STATE_DEFAULT if none
+         */
+        int topState() {
+            int top = ThermalUtils.STATE_DEFAULT;
+            for (int state = 0; state < STATES; state++) {
+                if (millis[state] > millis[top]) top = state;
+            }
+            return top;
+        }
+
+        /**
+         * @return the average temperature change per segment in the given
+         * profile in millidegrees Celsius, or 0 if unknown
+         */
+        long averageTempDelta(int state) {
+            return tempSegments[state] == 0 ? 0 : tempDelta[state] / tempSegments[state];
+        }
+
+        private Usage copy() {
+            final Usage usage = new Usage();
+            System.arraycopy(millis, 0, usage.millis, 0, STATES);
+            System.arraycopy(segments, 0, usage.segments, 0, STATES);
+            System.arraycopy(tempDelta, 0, usage.tempDelta, 0, STATES);
+            System.arraycopy(tempSegments, 0, usage.tempSegments, 0, STATES);
+            return usage;
+        }
+    }
+
+    static synchronized ThermalLedger get(Context context) {
+        if (sInstance == null) {
+            sInstance = new ThermalLedger(new File(context.getFilesDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    private ThermalLedger(File file) {
+        mFile = file;
+        load();
+    }
+
+    /**
+     * Ends the running segment and starts one for the given package and
+     * profile, unless both are unchanged
+     *
+     * @param temp hottest zone right now, or FileUtils.INVALID_INT
+     */
+    synchronized void switchTo(String packageName, int state, int temp) {
+        if (packageName.equals(mPackage) && state == mState) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        end(now, temp);
+        mPackage = packageName;
+        mState = state;
+        mSince = now;
+        mStartTemp = temp;
+    }
+
+    /**
+     * Ends the running segment without starting a new one, e.g. at screen off
+     */
+    synchronized void pause(int temp) {
+        end(SystemClock.elapsedRealtime(), temp);
+        mPackage = null;
+    }
+
+    private void end(long now, int temp) {
+        if (mPackage == null) {
+            return;
+        }
+        Usage usage = mUsage.get(mPackage);
+        if (usage == null) {
+            usage = new Usage();
+            mUsage.put(mPackage, usage);
+        }
+        usage.millis[mState] += now - mSince;
+        usage.segments[mState]++;
+        if (temp != FileUtils.INVALID_INT && mStartTemp != FileUtils.INVALID_INT) {
+            usage.tempDelta[mState] += temp - mStartTemp;
+            usage.tempSegments[mState]++;
+        }
+        mDirty = true;
+    }
+
+    /**
+     * @return a copy of the totals of the given package, or null if it was
+     * never in the foreground
+     */
+    synchronized Usage getUsage(String packageName) {
+        final Usage usage = mUsage.get(packageName);
+        return usage != null ? usage.copy() : null;
+    }
+
+    /**
+     * Writes the totals out if anything changed since the last time
+     */
+    synchronized void flush() {
+        if (!mDirty) {
+            return;
+        }
+
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(tmp)) {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mUsage.size());
+            for (Map.Entry<String, Usage> entry : mUsage.entrySet()) {
+                final Usage usage = entry.getValue();
+                int used = 0;
+                for (int state = 0; state < STATES; state++) {
+                    if (usage.segments[state] != 0) used |= 1 << state;
+                }
+                out.writeUTF(entry.getKey());
+                out.writeByte(used);
+                for (int state = 0; state < STATES; state++) {
+                    if ((used & (1 << state)) == 0) continue;
+                    out.writeLong(usage.millis[state]);
+                    out.writeInt(usage.segments[state]);
+                    out.writeLong(usage.tempDelta[state]);
+                    out.writeInt(usage.tempSegments[state]);
+                }
+            }
+            out.flush();
+            stream.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + tmp, e);
+            tmp.delete();
+            return;
+        }
+
+        if (!tmp.renameTo(mFile)) {
+            Log.e(TAG, "Could not rename " + tmp + " to " + mFile);
+            tmp.delete();
+            return;
+        }
+        mDirty = false;
+    }
+
+    private void load() {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)))) {
+            final int magic = in.readInt();
+            final int version = in.readInt();
+            if (magic != MAGIC || version != VERSION) {
+                Log.w(TAG, "Ignoring ledger version " + version);
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String packageName = in.readUTF();
+                final int used = in.readUnsignedByte();
+                final Usage usage = new Usage();
+                for (int state = 0; state < STATES; state++) {
+                    if ((used & (1 << state)) == 0) continue;
+                    usage.millis[state] = in.readLong();
+                    usage.segments[state] = in.readInt();
+                    usage.tempDelta[state] = in.readLong();
+                    usage.tempSegments[state] = in.readInt();
+                }
+                mUsage.put(packageName, usage);
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing recorded yet
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + mFile + ", keeping what was read", e);
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("  ledger: " + mUsage.size() + " packages, current " + mPackage
+                + " state=" + mState + (mDirty ? " (not flushed)" : ""));
+        for (Map.Entry<String, Usage> entry : new TreeMap<>(mUsage).entrySet()) {
+            final Usage usage = entry.getValue();
+            final StringBuilder line = new StringBuilder("    ").append(entry.getKey());
+            for (int state = 0; state < STATES; state++) {
+                if (usage.segments[state] == 0) continue;
+                line.append(" state=").append(state)
+                        .append(" ms=").append(usage.millis[state])
+                        .append(" n=").append(usage.segments[state])
+                        .append(" avgDelta=").append(usage.averageTempDelta(state));
+            }
+            pw.println(line);
+        }
+    }
+}
@@ -23,24 +23,71 @@ import android.app.IActivityTaskManager;
 import android.app.TaskStackListener;
 import android.app.Service;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.media.session.MediaController;
 import android.media.session.MediaSessionManager;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Message;
+import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 
+import org.lineageos.settings.utils.AppClassifier;
+import org.lineageos.settings.utils.FileUtils;
+import org.lineageos.settings.utils.SysfsWatcher;
+import org.lineageos.settings.utils.SysfsWriteCache;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ThermalService extends Service {
 
     private static final String TAG = "ThermalService";
     private static final boolean DEBUG = false;
 
+    private static final int MSG_EVALUATE = 1;
+    private static final int MSG_APPLY = 2;
+    private static final int MSG_FLUSH_LEDGER = 3;
+    // Quiet time after the last task stack event before a transition is
+    // taken as done
+    private static final long SETTLE_DELAY_MS = 80;
+    // Evaluating is never put off longer than this after the first event
+    private static final long MAX_SETTLE_DELAY_MS = 250;
+    // The ledger is also written out at every screen off
+    private static final long LEDGER_FLUSH_INTERVAL_MS = 15 * 60 * 1000;
+
+    private final AtomicLong mEvents = new AtomicLong();
+    private final AtomicLong mEvaluations = new AtomicLong();
+    private final AtomicLong mSwitches = new AtomicLong();
+
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+
+    // Uptime of the first event since the last evaluation, 0 if none.
+    // Guarded by mTaskListener.
+    private long mBurstStart;
+
+    // Only touched on the handler thread
     private String mPreviousApp;
+    private ComponentName mPreviousActivity;
+    private int mAppliedState = ThermalUtils.STATE_DEFAULT;
     private ThermalUtils mThermalUtils;
+    private ThermalSwitchPolicy mSwitchPolicy;
+    private ThermalZoneSampler mZoneSampler;
+    private ThermalLedger mLedger;
+    private MediaSessionTracker mMediaSessionTracker;
+    private ForceStopScheduler mForceStopScheduler;
+    private SysfsWatcher mSysfsWatcher;
 
     private IActivityTaskManager mActivityTaskManager;
     private ActivityManager mActivityManager;
@@ -49,15 +96,42 @@ public class ThermalService extends Service {
     private BroadcastReceiver mIntentReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
+            if (Intent.ACTION_USER_PRESENT.equals(intent.getAction())) {
+                mForceStopScheduler.thaw(Collections.emptySet());
+                return;
+            }
             mPreviousApp = "";
+            mPreviousActivity = null;
+            final boolean screenOn = Intent.ACTION_SCREEN_ON.equals(intent.getAction());
+            mLedger.pause(mZoneSampler.getLatestMax());
+            if (!screenOn) {
+                mLedger.flush();
+            }
+            if (screenOn) {
+                mForceStopScheduler.cancelAll();
+                mSysfsWatcher.start();
+            } else {
+                mSysfsWatcher.stop();
+            }
+            // The thermal HAL may have rewritten sconfig while the screen changed state
+            SysfsWriteCache.invalidateAll();
             mThermalUtils.setDefaultThermalProfile();
-            mThermalUtils.onSleepChange(intent, mActivityManager, mMediaSessionManager);
+            mSwitchPolicy.reset(ThermalUtils.STATE_DEFAULT);
+            mAppliedState = ThermalUtils.STATE_DEFAULT;
+            mHandler.removeMessages(MSG_APPLY);
+            mZoneSampler.setState(ThermalUtils.STATE_DEFAULT);
+            mZoneSampler.setScreenOn(screenOn);
+            mThermalUtils.onSleepChange(intent, this::scheduleStop,
+                    mMediaSessionTracker::isActive);
         }
     };
 
     @Override
     public void onCreate() {
         if (DEBUG) Log.d(TAG, "Creating service");
+        mHandlerThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_FOREGROUND);
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper(), this::handleMessage);
         try {
             mActivityTaskManager = ActivityTaskManager.getService();
             mActivityTaskManager.registerTaskStackListener(mTaskListener);
@@ -68,6 +142,21 @@ public class ThermalService extends Service {
             // Do nothing
         }
         mThermalUtils = new ThermalUtils(this);
+        mThermalUtils.setClassifier(AppClassifier.get(this));
+        mSwitchPolicy = ThermalSwitchPolicy.fromResources(this);
+        mZoneSampler = ThermalZoneSampler.start(this, mHandler);
+        mLedger = ThermalLedger.get(this);
+        mForceStopScheduler = new ForceStopScheduler(this, mActivityManager);
+        // In case we went away while some were frozen
+        mForceStopScheduler.thaw(mThermalUtils.getFreezePackages());
+        mMediaSessionTracker = new MediaSessionTracker(mMediaSessionManager, mHandler,
+                pkg -> mThermalUtils.onPlaybackStopped(pkg, this::scheduleStop));
+        mMediaSessionTracker.start();
+        mHandler.sendEmptyMessageDelayed(MSG_FLUSH_LEDGER, LEDGER_FLUSH_INTERVAL_MS);
+        // Notice when the thermal HAL switches sconfig behind our back
+        mSysfsWatcher = new SysfsWatcher(TAG, Runnable::run);
+        mSysfsWatcher.watch(ThermalUtils.THERMAL_SCONFIG, SysfsWriteCache::observed);
+        mSysfsWatcher.start();
         registerReceiver();
         super.onCreate();
     }
@@ -78,33 +167,154 @@ public class ThermalService extends Service {
         return START_STICKY;
     }
 
+    @Override
+    public void onDestroy() {
+        if (DEBUG) Log.d(TAG, "Destroying service");
+        try {
+            mActivityTaskManager.unregisterTaskStackListener(mTaskListener);
+        } catch (RemoteException e) {
+            // Do nothing
+        }
+        unregisterReceiver(mIntentReceiver);
+        mSysfsWatcher.stop();
+        mZoneSampler.stop();
+        mMediaSessionTracker.stop();
+        mForceStopScheduler.quit();
+        // Behind whatever the handler still has to account to the ledger
+        mHandler.post(() -> {
+            mLedger.pause(mZoneSampler.getLatestMax());
+            mLedger.flush();
+        });
+        mHandlerThread.quitSafely();
+        super.onDestroy();
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return null;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("ThermalService:");
+        pw.println("  previous app: " + mPreviousApp + ", activity: " + mPreviousActivity);
+        pw.println("  task stack events: " + mEvents.get() + ", evaluations: "
+                + mEvaluations.get() + ", profile switches: " + mSwitches.get());
+        mSwitchPolicy.dump(pw);
+        mZoneSampler.dump(pw);
+        mLedger.dump(pw);
+        mMediaSessionTracker.dump(pw);
+        mForceStopScheduler.dump(pw);
+        AppClassifier.get(this).dump(pw);
+        FileUtils.dump(pw);
+    }
+
     private void registerReceiver() {
         IntentFilter filter = new IntentFilter();
         filter.addAction(Intent.ACTION_SCREEN_OFF);
         filter.addAction(Intent.ACTION_SCREEN_ON);
-        this.registerReceiver(mIntentReceiver, filter);
+        filter.addAction(Intent.ACTION_USER_PRESENT);
+        // Delivered on the handler thread, in order with the evaluations
+        this.registerReceiver(mIntentReceiver, filter, null, mHandler);
     }
 
-    private final TaskStackListener mTaskListener = new TaskStackListener() {
-        @Override
-        public void onTaskStackChanged() {
-            try {
-                final RootTaskInfo info = mActivityTaskManager.getFocusedRootTaskInfo();
-                if (info == null || info.topActivity == null) {
+    private void scheduleStop(String packageName) {
+        mForceStopScheduler.schedule(packageName,
+                mThermalUtils.getFreezeStateForPackage(packageName));
+    }
+
+    private boolean handleMessage(Message msg) {
+        switch (msg.what) {
+            case MSG_EVALUATE:
+                synchronized (mTaskListener) {
+                    mBurstStart = 0;
+                }
+                evaluate();
+                return true;
+            case MSG_APPLY:
+                applyPending();
+                return true;
+            case MSG_FLUSH_LEDGER:
+                mLedger.flush();
+                mHandler.sendEmptyMessageDelayed(MSG_FLUSH_LEDGER, LEDGER_FLUSH_INTERVAL_MS);
+                return true;
+        }
+        return false;
+    }
+
+    private void evaluate() {
+        mEvaluations.incrementAndGet();
+        try {
+            final RootTaskInfo info = mActivityTaskManager.getFocusedRootTaskInfo();
+            if (info == null || info.topActivity == null) {
+                return;
+            }
+
+            // Activities may have a profile of their own, so look at every change
+            final ComponentName foreground = info.topActivity;
+            if (!foreground.equals(mPreviousActivity)) {
+                final String foregroundApp = foreground.getPackageName();
+                mSwitchPolicy.onForeground(foregroundApp, mThermalUtils.getStateForComponent(
+                        foregroundApp, foreground.getClassName()));
+                mPreviousActivity = foreground;
+                // Overlays like SystemUI keep the app below in the foreground
+                if (mSwitchPolicy.isTransient(foregroundApp)) {
                     return;
                 }
+                mPreviousApp = foregroundApp;
+                if (!applyPending()) {
+                    mLedger.switchTo(foregroundApp, mAppliedState,
+                            mZoneSampler.getLatestMax());
+                }
+            }
+        } catch (RemoteException e) {
+            Log.w(TAG, "Could not get the focused task", e);
+        }
+    }
+
+    /**
+     * @return whether a profile was applied, which also moved the ledger
+     * to the previous app
+     */
+    private boolean applyPending() {
+        final int state = mSwitchPolicy.poll();
+        final boolean applied = state != ThermalSwitchPolicy.NONE;
+        if (applied) {
+            mThermalUtils.setThermalState(state);
+            mZoneSampler.setState(state);
+            mAppliedState = state;
+            mSwitches.incrementAndGet();
+            if (!TextUtils.isEmpty(mPreviousApp)) {
+                mLedger.switchTo(mPreviousApp, state, mZoneSampler.getLatestMax());
+            }
+        }
 
-                String foregroundApp = info.topActivity.getPackageName();
-                if (!foregroundApp.equals(mPreviousApp)) {
-                    mThermalUtils.setThermalProfile(foregroundApp);
-                    mPreviousApp = foregroundApp;
+        mHandler.removeMessages(MSG_APPLY);
+        final long delay = mSwitchPolicy.pendingDelay();
+        if (delay >= 0) {
+            mHandler.sendEmptyMessageDelayed(MSG_APPLY, delay);
+        }
+        return applied;
+    }
+
+    private final TaskStackListener mTaskListener = new TaskStackListener() {
+        @Override
+        public void onTaskStackChanged() {
+            // Called on binder threads, several times per transition. Every
+            // event pushes the one evaluation back until the burst has been
+            // quiet for the settle delay, but no further than the maximum
+            // delay after its first event, which then looks up whatever is
+            // focused by then.
+            mEvents.incrementAndGet();
+            final long now = SystemClock.uptimeMillis();
+            synchronized (this) {
+                if (mBurstStart == 0) {
+                    mBurstStart = now;
                 }
-            } catch (Exception e) {}
+                mHandler.removeMessages(MSG_EVALUATE);
+                mHandler.sendEmptyMessageAtTime(MSG_EVALUATE, Math.min(now + SETTLE_DELAY_MS,
+                        mBurstStart + MAX_SETTLE_DELAY_MS));
+            }
         }
     };
 }
@@ -22,7 +22,10 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -43,6 +46,8 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import com.android.settingslib.applications.ApplicationsState;
 
 import org.lineageos.settings.R;
+import org.lineageos.settings.utils.AppClassifier;
+import org.lineageos.settings.widget.ActivityProfileDialog;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -53,6 +58,17 @@ import java.util.Map;
 public class ThermalSettingsFragment extends PreferenceFragment
         implements ApplicationsState.Callbacks {
 
+    // Indexed by ThermalUtils.STATE_*
+    private static final int[] MODE_NAMES = {
+            R.string.thermal_default,
+            R.string.thermal_benchmark,
+            R.string.thermal_browser,
+            R.string.thermal_camera,
+            R.string.thermal_dialer,
+            R.string.thermal_gaming,
+            R.string.thermal_streaming
+    };
+
     private AllPackagesAdapter mAllPackagesAdapter;
     private ApplicationsState mApplicationsState;
     private ApplicationsState.Session mSession;
@@ -61,8 +77,11 @@ public class ThermalSettingsFragment extends PreferenceFragment
             new HashMap<String, ApplicationsState.AppEntry>();
 
     private RecyclerView mAppsRecyclerView;
+    private TextView mTemperaturesView;
 
     private ThermalUtils mThermalUtils;
+    // Null until loaded, usage is not shown meanwhile
+    private ThermalLedger mLedger;
 
     @Override
     public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
@@ -80,6 +99,28 @@ public class ThermalSettingsFragment extends PreferenceFragment
         mAllPackagesAdapter = new AllPackagesAdapter(getActivity());
 
         mThermalUtils = new ThermalUtils(getActivity());
+        // Show what unconfigured apps actually get
+        mThermalUtils.setClassifier(AppClassifier.get(getActivity()));
+        loadLedger();
+    }
+
+    /**
+     * Loads the ledger, which may read its file, off the UI thread and shows
+     * the usage once it is there
+     */
+    private void loadLedger() {
+        final Context context = getActivity().getApplicationContext();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        new Thread(() -> {
+            final ThermalLedger ledger = ThermalLedger.get(context);
+            handler.post(() -> {
+                if (!isAdded()) {
+                    return;
+                }
+                mLedger = ledger;
+                mAllPackagesAdapter.notifyDataSetChanged();
+            });
+        }, "ThermalLedger.load").start();
     }
 
     @Override
@@ -92,6 +133,7 @@ public class ThermalSettingsFragment extends PreferenceFragment
     public void onViewCreated(final View view, @Nullable Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
 
+        mTemperaturesView = view.findViewById(R.id.thermal_temperatures);
         mAppsRecyclerView = view.findViewById(R.id.thermal_rv_view);
         mAppsRecyclerView.setLayoutManager(new LinearLayoutManager(getActivity()));
         mAppsRecyclerView.setAdapter(mAllPackagesAdapter);
@@ -102,6 +144,7 @@ public class ThermalSettingsFragment extends PreferenceFragment
     public void onResume() {
         super.onResume();
         getActivity().setTitle(getResources().getString(R.string.thermal_title));
+        updateTemperatures();
         rebuild();
     }
 
@@ -193,6 +236,48 @@ public class ThermalSettingsFragment extends PreferenceFragment
         mSession.rebuild(mActivityFilter, ApplicationsState.ALPHA_COMPARATOR);
     }
 
+    private void updateTemperatures() {
+        final ThermalZoneSampler sampler = ThermalZoneSampler.getInstance();
+        final List<ThermalZoneSampler.Summary> summaries =
+                sampler != null ? sampler.summarize() : null;
+        if (summaries == null || summaries.isEmpty()) {
+            mTemperaturesView.setVisibility(View.GONE);
+            return;
+        }
+
+        final StringBuilder text = new StringBuilder(
+                getString(R.string.thermal_temperatures_title));
+        for (ThermalZoneSampler.Summary s : summaries) {
+            text.append('\n').append(getString(R.string.thermal_temperatures_zone, s.zone,
+                    getString(MODE_NAMES[s.state]),
+                    s.min / 1000f, s.max / 1000f, s.p95 / 1000f));
+        }
+        mTemperaturesView.setText(text);
+        mTemperaturesView.setVisibility(View.VISIBLE);
+    }
+
+    private void showActivityProfiles(ApplicationsState.AppEntry entry) {
+        final String packageName = entry.info.packageName;
+        final CharSequence[] names = new CharSequence[MODE_NAMES.length];
+        for (int i = 0; i < MODE_NAMES.length; i++) {
+            names[i] = getString(MODE_NAMES[i]);
+        }
+        ActivityProfileDialog.show(getActivity(), packageName, entry.label, names,
+                new ActivityProfileDialog.Profiles() {
+                    @Override
+                    public int get(String className) {
+                        final Integer state = mThermalUtils.getComponentStates(packageName)
+                                .get(className);
+                        return state != null ? state : ThermalUtils.STATE_INHERIT;
+                    }
+
+                    @Override
+                    public void set(String className, int profile) {
+                        mThermalUtils.writeComponent(packageName, className, profile);
+                    }
+                });
+    }
+
     private int getStateDrawable(int state) {
         switch (state) {
             case ThermalUtils.STATE_BENCHMARK:
@@ -219,6 +304,7 @@ public class ThermalSettingsFragment extends PreferenceFragment
         private ImageView icon;
         private View rootView;
         private ImageView stateIcon;
+        private TextView usage;
 
         private ViewHolder(View view) {
             super(view);
@@ -226,6 +312,7 @@ public class ThermalSettingsFragment extends PreferenceFragment
             this.mode = view.findViewById(R.id.app_mode);
             this.icon = view.findViewById(R.id.app_icon);
             this.stateIcon = view.findViewById(R.id.state);
+            this.usage = view.findViewById(R.id.app_usage);
             this.rootView = view;
 
             view.setTag(this);
@@ -235,15 +322,6 @@ public class ThermalSettingsFragment extends PreferenceFragment
     private class ModeAdapter extends BaseAdapter {
 
         private final LayoutInflater inflater;
-        private final int[] items = {
-                R.string.thermal_default,
-                R.string.thermal_benchmark,
-                R.string.thermal_browser,
-                R.string.thermal_camera,
-                R.string.thermal_dialer,
-                R.string.thermal_gaming,
-                R.string.thermal_streaming
-        };
 
         private ModeAdapter(Context context) {
             inflater = LayoutInflater.from(context);
@@ -251,12 +329,12 @@ public class ThermalSettingsFragment extends PreferenceFragment
 
         @Override
         public int getCount() {
-            return items.length;
+            return MODE_NAMES.length;
         }
 
         @Override
         public Object getItem(int position) {
-            return items[position];
+            return MODE_NAMES[position];
         }
 
         @Override
@@ -274,7 +352,7 @@ public class ThermalSettingsFragment extends PreferenceFragment
                         parent, false);
             }
 
-            view.setText(items[position]);
+            view.setText(MODE_NAMES[position]);
             view.setTextSize(14f);
 
             return view;
@@ -323,12 +401,34 @@ public class ThermalSettingsFragment extends PreferenceFragment
 
             holder.title.setText(entry.label);
             holder.title.setOnClickListener(v -> holder.mode.performClick());
+            holder.title.setOnLongClickListener(v -> {
+                showActivityProfiles(entry);
+                return true;
+            });
+            holder.rootView.setOnLongClickListener(v -> {
+                showActivityProfiles(entry);
+                return true;
+            });
             mApplicationsState.ensureIcon(entry);
             holder.icon.setImageDrawable(entry.icon);
             int packageState = mThermalUtils.getStateForPackage(entry.info.packageName);
             holder.mode.setSelection(packageState, false);
             holder.mode.setTag(entry);
             holder.stateIcon.setImageResource(getStateDrawable(packageState));
+            bindUsage(holder, mLedger != null ? mLedger.getUsage(entry.info.packageName) : null);
+        }
+
+        private void bindUsage(ViewHolder holder, ThermalLedger.Usage usage) {
+            final int state = usage != null ? usage.topState() : ThermalUtils.STATE_DEFAULT;
+            if (usage == null || usage.millis[state] < DateUtils.MINUTE_IN_MILLIS) {
+                holder.usage.setVisibility(View.GONE);
+                return;
+            }
+            holder.usage.setText(getString(R.string.thermal_usage,
+                    getString(MODE_NAMES[state]),
+                    DateUtils.formatElapsedTime(usage.millis[state] / 1000),
+                    usage.averageTempDelta(state) / 1000f));
+            holder.usage.setVisibility(View.VISIBLE);
         }
 
         private void setEntries(List<ApplicationsState.AppEntry> entries,
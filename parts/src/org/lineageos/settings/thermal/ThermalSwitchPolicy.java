@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.thermal;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.SystemClock;
+
+import org.lineageos.settings.R;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Decides when a new foreground app's thermal profile actually gets applied.
+ *
+ * Switching to an app profile happens after the promote delay, falling back
+ * to the default profile only after the longer demote delay, so that quickly
+ * leaving and re-entering an app keeps its profile. Every profile also stays
+ * for at least the minimum dwell time, and transient overlay packages are
+ * ignored altogether.
+ *
+ * Not thread safe, meant to be driven from a single handler.
+ */
+final class ThermalSwitchPolicy {
+
+    static final int NONE = -1;
+
+    interface Clock {
+        long uptimeMillis();
+    }
+
+    private final Clock mClock;
+    private final Set<String> mTransientPackages;
+    private final long mPromoteDelayMs;
+    private final long mDemoteDelayMs;
+    private final long mMinDwellMs;
+
+    private int mApplied = ThermalUtils.STATE_DEFAULT;
+    private long mAppliedSince;
+    private int mPending = NONE;
+    private long mPendingSince;
+
+    private long mIgnored;
+    private long mSuppressed;
+
+    ThermalSwitchPolicy(Clock clock, Set<String> transientPackages, long promoteDelayMs,
+            long demoteDelayMs, long minDwellMs) {
+        mClock = clock;
+        mTransientPackages = transientPackages;
+        mPromoteDelayMs = promoteDelayMs;
+        mDemoteDelayMs = demoteDelayMs;
+        mMinDwellMs = minDwellMs;
+        mAppliedSince = clock.uptimeMillis();
+    }
+
+    static ThermalSwitchPolicy fromResources(Context context) {
+        final Resources res = context.getResources();
+        return new ThermalSwitchPolicy(SystemClock::uptimeMillis,
+                new HashSet<>(Arrays.asList(
+                        res.getStringArray(R.array.config_thermalTransientPackages))),
+                res.getInteger(R.integer.config_thermalPromoteDelayMs),
+                res.getInteger(R.integer.config_thermalDemoteDelayMs),
+                res.getInteger(R.integer.config_thermalMinDwellMs));
+    }
+
+    /**
+     * @return whether the package is an overlay which neither switches
+     * profiles nor counts as being in the foreground
+     */
+    boolean isTransient(String packageName) {
+        return mTransientPackages.contains(packageName);
+    }
+
+    /**
+     * Feeds the profile wanted by the new foreground app
+     */
+    void onForeground(String packageName, int state) {
+        if (mTransientPackages.contains(packageName)) {
+            mIgnored++;
+            return;
+        }
+        if (state == mApplied) {
+            if (mPending != NONE) {
+                // Came back before the switch was due
+                mSuppressed++;
+                mPending = NONE;
+            }
+            return;
+        }
+        if (state != mPending) {
+            if (mPending != NONE) mSuppressed++;
+            mPending = state;
+            mPendingSince = mClock.uptimeMillis();
+        }
+    }
+
+    /**
+     * @return the profile to apply now, or {@link #NONE}
+     */
+    int poll() {
+        if (mPending == NONE || pendingDelay() > 0) {
+            return NONE;
+        }
+        reset(mPending);
+        return mApplied;
+    }
+
+    /**
+     * @return milliseconds until {@link #poll} returns the pending profile,
+     * or -1 if there is none
+     */
+    long pendingDelay() {
+        if (mPending == NONE) {
+            return -1;
+        }
+        final long delay = mPending == ThermalUtils.STATE_DEFAULT
+                ? mDemoteDelayMs : mPromoteDelayMs;
+        final long due = Math.max(mPendingSince + delay, mAppliedSince + mMinDwellMs);
+        return Math.max(due - mClock.uptimeMillis(), 0);
+    }
+
+    /**
+     * Records a profile applied outside of the policy and drops what is pending
+     */
+    void reset(int state) {
+        mApplied = state;
+        mAppliedSince = mClock.uptimeMillis();
+        mPending = NONE;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  switch policy: applied=" + mApplied + " pending=" + mPending
+                + " (in " + pendingDelay() + "ms) ignored=" + mIgnored
+                + " suppressed=" + mSuppressed);
+    }
+}
@@ -16,29 +16,26 @@
 
 package org.lineageos.settings.thermal;
 
-import android.app.ActivityManager;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.media.session.MediaController;
-import android.media.session.MediaSessionManager;
-import android.media.session.PlaybackState;
-import android.os.Bundle;
 import android.os.UserHandle;
 import android.util.Log;
-import android.util.Pair;
 
 import androidx.preference.PreferenceManager;
 
+import org.lineageos.settings.utils.AppClassifier;
 import org.lineageos.settings.utils.FileUtils;
+import org.lineageos.settings.utils.ProfileStore;
+import org.lineageos.settings.utils.SysfsNodeRegistry;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public final class ThermalUtils {
     private static final String TAG = "ThermalUtils";
@@ -47,9 +44,15 @@ public final class ThermalUtils {
     private static final String FORCESTOP_PACKAGE_BILIBILI = "tv.danmaku.bili";
     private static final String FORCESTOP_PACKAGE_BILIBILI_HD = "tv.danmaku.bilibilihd";
     private static final String FORCESTOP_PACKAGE_BILIBILI_IN = "com.bilibili.app.in";
+    private static final String FORCESTOP_FREEZE = "forcestop_freeze";
     private static Set<String> sStopSet = null;
-    private String mCurrentPower = null;
+    // Packages of the stop set which get frozen instead of stopped
+    private static Set<String> sFreezeSet = null;
+    // Stop set packages left running at screen off because they were playing
+    private final Set<String> mWaitingForPlayback = new HashSet<>();
 
+    // An activity without a profile of its own, it uses the one of its app
+    protected static final int STATE_INHERIT = -1;
     protected static final int STATE_DEFAULT = 0;
     protected static final int STATE_BENCHMARK = 1;
     protected static final int STATE_BROWSER = 2;
@@ -66,25 +69,48 @@ public final class ThermalUtils {
     private static final String THERMAL_STATE_GAMING = "9";
     private static final String THERMAL_STATE_STREAMING = "14";
 
-    private static final String THERMAL_BENCHMARK = "thermal.benchmark=";
-    private static final String THERMAL_BROWSER = "thermal.browser=";
-    private static final String THERMAL_CAMERA = "thermal.camera=";
-    private static final String THERMAL_DIALER = "thermal.dialer=";
-    private static final String THERMAL_GAMING = "thermal.gaming=";
-    private static final String THERMAL_STREAMING = "thermal.streaming=";
+    // Indexed by STATE_*
+    private static final String[] THERMAL_STATES = {
+            THERMAL_STATE_DEFAULT, THERMAL_STATE_BENCHMARK, THERMAL_STATE_BROWSER,
+            THERMAL_STATE_CAMERA, THERMAL_STATE_DIALER, THERMAL_STATE_GAMING,
+            THERMAL_STATE_STREAMING
+    };
 
-    private static final String THERMAL_SCONFIG = "/sys/class/thermal/thermal_message/sconfig";
+    static final String THERMAL_SCONFIG = "/sys/class/thermal/thermal_message/sconfig";
 
     private SharedPreferences mSharedPrefs;
+    private final String mSconfigPath;
+
+    // Package name or component key to STATE_*
+    private final ProfileStore mProfiles;
+    // Suggests profiles for apps without one, none if null
+    private AppClassifier mClassifier;
 
     ThermalUtils(Context context) {
+        this(context, THERMAL_SCONFIG);
+    }
+
+    /**
+     * @param sconfigPath where to write thermal profiles, only differs from
+     *                    {@link #THERMAL_SCONFIG} for stand-in trees
+     */
+    ThermalUtils(Context context, String sconfigPath) {
         mSharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        mSconfigPath = sconfigPath;
+        SysfsNodeRegistry.register(mSconfigPath);
+        mProfiles = ProfileStore.get(context, THERMAL_CONTROL);
+        mProfiles.migrate(mSharedPrefs, THERMAL_CONTROL, STATE_BENCHMARK);
 
         if (sStopSet == null) {
             Set<String> stringSet = mSharedPrefs.getStringSet(FORCESTOP_CONTROL, null);
             if (stringSet == null) sStopSet = new HashSet<>();
             else sStopSet = new HashSet<>(stringSet);
         }
+        if (sFreezeSet == null) {
+            Set<String> stringSet = mSharedPrefs.getStringSet(FORCESTOP_FREEZE, null);
+            if (stringSet == null) sFreezeSet = new HashSet<>();
+            else sFreezeSet = new HashSet<>(stringSet);
+        }
     }
 
 
@@ -115,107 +141,89 @@ public final class ThermalUtils {
         }
     }
 
-    private void writeValue(String profiles) {
-        mSharedPrefs.edit().putString(THERMAL_CONTROL, profiles).apply();
+    /**
+     * Lets apps without a profile of their own use the one suggested for
+     * their kind of app
+     */
+    void setClassifier(AppClassifier classifier) {
+        mClassifier = classifier;
     }
 
-    private String getValue() {
-        String value = mSharedPrefs.getString(THERMAL_CONTROL, null);
+    /**
+     * @param mode STATE_*, stored even for STATE_DEFAULT so that it wins over
+     *             a suggested profile, or STATE_INHERIT to drop the choice
+     */
+    protected void writePackage(String packageName, int mode) {
+        if (mode >= STATE_DEFAULT && mode <= STATE_STREAMING) {
+            mProfiles.put(packageName, mode);
+        } else {
+            mProfiles.remove(packageName);
+        }
+    }
 
-        if (value != null) {
-             String[] modes = value.split(":");
-             if (modes.length < 5) value = null;
-         }
+    protected int getStateForPackage(String packageName) {
+        final int state = mProfiles.get(packageName, STATE_INHERIT);
+        return state != STATE_INHERIT ? state : getSuggestedState(packageName);
+    }
 
-        if (value == null || value.isEmpty()) {
-            value = THERMAL_BENCHMARK + ":" + THERMAL_BROWSER + ":" + THERMAL_CAMERA + ":" +
-                    THERMAL_DIALER + ":" + THERMAL_GAMING + ":" + THERMAL_STREAMING;
-            writeValue(value);
+    private int getSuggestedState(String packageName) {
+        if (mClassifier == null) {
+            return STATE_DEFAULT;
+        }
+        switch (mClassifier.getAppClass(packageName)) {
+            case AppClassifier.CLASS_GAME:
+                return STATE_GAMING;
+            case AppClassifier.CLASS_VIDEO:
+                return STATE_STREAMING;
+            default:
+                return STATE_DEFAULT;
         }
-        return value;
     }
 
-    protected void writePackage(String packageName, int mode) {
-        String value = getValue();
-        value = value.replace(packageName + ",", "");
-        String[] modes = value.split(":");
-        String finalString;
-
-        switch (mode) {
-            case STATE_BENCHMARK:
-                modes[0] = modes[0] + packageName + ",";
-                break;
-            case STATE_BROWSER:
-                modes[1] = modes[1] + packageName + ",";
-                break;
-            case STATE_CAMERA:
-                modes[2] = modes[2] + packageName + ",";
-                break;
-            case STATE_DIALER:
-                modes[3] = modes[3] + packageName + ",";
-                break;
-            case STATE_GAMING:
-                modes[4] = modes[4] + packageName + ",";
-                break;
-            case STATE_STREAMING:
-                modes[5] = modes[5] + packageName + ",";
-                break;
+    /**
+     * Gives a single activity its own profile. Unlike for packages,
+     * STATE_DEFAULT is stored, it overrides whatever the app uses.
+     *
+     * @param mode STATE_* or STATE_INHERIT to go back to the app's profile
+     */
+    protected void writeComponent(String packageName, String className, int mode) {
+        final String key = ProfileStore.componentKey(packageName, className);
+        if (mode >= STATE_DEFAULT && mode <= STATE_STREAMING) {
+            mProfiles.put(key, mode);
+        } else {
+            mProfiles.remove(key);
         }
-
-        finalString = modes[0] + ":" + modes[1] + ":" + modes[2] + ":" + modes[3] + ":" +
-                modes[4] + ":" + modes[5];
-
-        writeValue(finalString);
     }
 
-    protected int getStateForPackage(String packageName) {
-        String value = getValue();
-        String[] modes = value.split(":");
-        int state = STATE_DEFAULT;
-        if (modes[0].contains(packageName + ",")) {
-            state = STATE_BENCHMARK;
-        } else if (modes[1].contains(packageName + ",")) {
-            state = STATE_BROWSER;
-        } else if (modes[2].contains(packageName + ",")) {
-            state = STATE_CAMERA;
-        } else if (modes[3].contains(packageName + ",")) {
-            state = STATE_DIALER;
-        } else if (modes[4].contains(packageName + ",")) {
-            state = STATE_GAMING;
-        } else if (modes[5].contains(packageName + ",")) {
-            state = STATE_STREAMING;
-        }
+    /**
+     * @return the profile of the given activity, or the one of its package
+     */
+    protected int getStateForComponent(String packageName, String className) {
+        final int state = mProfiles.get(packageName, className, STATE_INHERIT);
+        return state != STATE_INHERIT ? state : getSuggestedState(packageName);
+    }
 
-        return state;
+    /**
+     * @return class name to STATE_* of the activities with their own profile
+     */
+    protected Map<String, Integer> getComponentStates(String packageName) {
+        return mProfiles.getComponents(packageName);
     }
 
     protected void setDefaultThermalProfile() {
-        FileUtils.writeLine(THERMAL_SCONFIG, THERMAL_STATE_DEFAULT);
+        FileUtils.writeLineAsync(mSconfigPath, THERMAL_STATE_DEFAULT);
     }
 
-    protected void setThermalProfile(String packageName) {
-        String value = getValue();
-        String modes[];
-        String state = THERMAL_STATE_DEFAULT;
-
-        if (value != null) {
-            modes = value.split(":");
-
-            if (modes[0].contains(packageName + ",")) {
-                state = THERMAL_STATE_BENCHMARK;
-            } else if (modes[1].contains(packageName + ",")) {
-                state = THERMAL_STATE_BROWSER;
-            } else if (modes[2].contains(packageName + ",")) {
-                state = THERMAL_STATE_CAMERA;
-            } else if (modes[3].contains(packageName + ",")) {
-                state = THERMAL_STATE_DIALER;
-            } else if (modes[4].contains(packageName + ",")) {
-                state = THERMAL_STATE_GAMING;
-            } else if (modes[5].contains(packageName + ",")) {
-                state = THERMAL_STATE_STREAMING;
-            }
-        }
-        FileUtils.writeLine(THERMAL_SCONFIG, state);
+    /**
+     * @return future completing once the profile was written, see
+     * {@link FileUtils#writeLineIfChangedAsync}
+     */
+    protected CompletableFuture<Boolean> setThermalProfile(String packageName) {
+        return setThermalState(getStateForPackage(packageName));
+    }
+
+    protected CompletableFuture<Boolean> setThermalState(int state) {
+        return FileUtils.writeLineIfChangedAsync(mSconfigPath, THERMAL_STATES[state]);
     }
 
     public void writeForceStopPackage(String packageName, boolean enabled) {
@@ -227,50 +235,50 @@ public final class ThermalUtils {
         return sStopSet != null && sStopSet.contains(packageName);
     }
 
-    public void onSleepChange(Intent intent, ActivityManager am, MediaSessionManager msm) {
-        mCurrentPower = intent.getAction();
-        Log.i(TAG,"onSleepChange " + mCurrentPower);
+    public void writeFreezePackage(String packageName, boolean enabled) {
+        if (enabled) sFreezeSet.add(packageName); else sFreezeSet.remove(packageName);
+        mSharedPrefs.edit().putStringSet(FORCESTOP_FREEZE, sFreezeSet).commit();
+    }
+
+    public boolean getFreezeStateForPackage(String packageName) {
+        return sFreezeSet != null && sFreezeSet.contains(packageName);
+    }
+
+    /**
+     * @return all packages which may have been frozen
+     */
+    Set<String> getFreezePackages() {
+        return new HashSet<>(sFreezeSet);
+    }
+
+    /**
+     * Stops the packages of the stop set at screen off. Packages with an
+     * active media session are stopped once their playback ends, unless the
+     * screen comes back on before.
+     */
+    public void onSleepChange(Intent intent, Consumer<String> forceStop,
+            Predicate<String> isPlaying) {
+        Log.i(TAG, "onSleepChange " + intent.getAction());
+        mWaitingForPlayback.clear();
         if (intent.getAction().equals(Intent.ACTION_SCREEN_OFF)) {
-            List<MediaController> sessions = msm.getActiveSessions(null);
             for (String pkg : sStopSet) {
-                boolean toBeStopped = true;
-
-                for (MediaController controller : sessions) {
-                    int state = controller.getPlaybackState().getState();
-                    if (pkg.equals(controller.getPackageName())
-                            && state != PlaybackState.STATE_PAUSED && state != PlaybackState.STATE_STOPPED) {
-                        toBeStopped = false;
-
-                        MediaController.Callback callback = new MediaController.Callback() {
-                            @Override
-                            public void onPlaybackStateChanged(PlaybackState state) {
-                                super.onPlaybackStateChanged(state);
-
-                                if (mCurrentPower.equals(Intent.ACTION_SCREEN_ON)){
-                                    controller.unregisterCallback(this);
-                                    Log.i(TAG, "screen is on, ignore stopping: " + pkg);
-                                    return;
-                                }
-
-                                int playState = state.getState();
-                                if (playState == PlaybackState.STATE_PAUSED || playState == PlaybackState.STATE_STOPPED) {
-                                    controller.unregisterCallback(this);
-                                    am.forceStopPackage(pkg);
-                                    Log.i(TAG, pkg + " was stopped. PlaybackState: " + playState);
-                                }
-                            }
-                        };
-                        controller.registerCallback(callback);
-                        Log.i(TAG, pkg + " is in an active media session.");
-                        break;
-                    }
-                }
-
-                if (toBeStopped) {
-                    am.forceStopPackage(pkg);
-                    Log.i(TAG, pkg + " was stopped.");
+                if (isPlaying.test(pkg)) {
+                    mWaitingForPlayback.add(pkg);
+                    Log.i(TAG, pkg + " is in an active media session.");
+                } else {
+                    forceStop.accept(pkg);
                 }
             }
         }
     }
+
+    /**
+     * Stops a package which was left running at screen off for its playback
+     */
+    public void onPlaybackStopped(String pkg, Consumer<String> forceStop) {
+        if (mWaitingForPlayback.remove(pkg) && sStopSet.contains(pkg)) {
+            Log.i(TAG, pkg + " playback ended.");
+            forceStop.accept(pkg);
+        }
+    }
 }
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.thermal;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.util.Log;
+
+import org.lineageos.settings.R;
+import org.lineageos.settings.utils.FileUtils;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Samples the temperature of a few thermal zones while the screen is on.
+ *
+ * Zones are looked up once, after that every sample is one pread() per zone
+ * into primitive ring buffers, tagged with the thermal profile applied at
+ * that time. Sampling speeds up when hot or in a performance profile and
+ * stops while the screen is off.
+ */
+final class ThermalZoneSampler {
+    private static final String TAG = "ThermalZoneSampler";
+    private static final boolean DEBUG = false;
+
+    private static final String THERMAL_CLASS = "/sys/class/thermal";
+    private static final String ZONE_PREFIX = "thermal_zone";
+
+    // Used when none of the configured zones exist
+    private static final int MAX_FALLBACK_ZONES = 8;
+
+    static final int CAPACITY = 600;
+
+    static final long FAST_INTERVAL_MS = 1000;
+    static final long NORMAL_INTERVAL_MS = 5000;
+    // Any zone at or above this samples at the fast rate, in millidegrees
+    static final int HOT_MILLI_CELSIUS = 50000;
+
+    private static volatile ThermalZoneSampler sInstance;
+
+    private final Handler mHandler;
+    private final Set<String> mWantedTypes;
+    private final Runnable mSampleRunnable = this::sample;
+
+    private String[] mTypes = new String[0];
+    private String[] mTempPaths = new String[0];
+    // One sample, read before taking the lock. Only used on the handler thread.
+    private int[] mReadings = new int[0];
+
+    // Ring buffers, sample i of zone z is at mTemps[i * zones + z]
+    private final long[] mTimes = new long[CAPACITY];
+    private final int[] mStates = new int[CAPACITY];
+    private int[] mTemps = new int[0];
+    private int mHead;
+    private int mCount;
+
+    private int mState = ThermalUtils.STATE_DEFAULT;
+    private boolean mScreenOn;
+    private volatile int mLatestMax = FileUtils.INVALID_INT;
+
+    private ThermalZoneSampler(Context context, Handler handler) {
+        mHandler = handler;
+        // Screen state broadcasts only arrive on the next change
+        mScreenOn = context.getSystemService(PowerManager.class).isInteractive();
+        mWantedTypes = new HashSet<>(Arrays.asList(
+                context.getResources().getStringArray(R.array.config_thermalSampledZones)));
+    }
+
+    /**
+     * Creates the process-wide sampler and starts sampling on the given handler
+     */
+    static ThermalZoneSampler start(Context context, Handler handler) {
+        final ThermalZoneSampler sampler = new ThermalZoneSampler(context, handler);
+        handler.post(() -> {
+            sampler.enumerate();
+            sampler.sample();
+        });
+        sInstance = sampler;
+        return sampler;
+    }
+
+    /**
+     * @return the running sampler, or null if ThermalService is not running
+     */
+    static ThermalZoneSampler getInstance() {
+        return sInstance;
+    }
+
+    void stop() {
+        mHandler.removeCallbacks(mSampleRunnable);
+        if (sInstance == this) {
+            sInstance = null;
+        }
+    }
+
+    /**
+     * Tags the following samples with the given profile, to be called on the
+     * handler thread
+     */
+    void setState(int state) {
+        final boolean faster = isFastState(state) && !isFastState(mState);
+        mState = state;
+        if (faster && mScreenOn) {
+            reschedule(0);
+        }
+    }
+
+    /**
+     * To be called on the handler thread
+     */
+    void setScreenOn(boolean screenOn) {
+        mScreenOn = screenOn;
+        if (screenOn) {
+            reschedule(0);
+        } else {
+            mHandler.removeCallbacks(mSampleRunnable);
+        }
+    }
+
+    /**
+     * @return the hottest zone of the last sample in millidegrees Celsius, or
+     * {@link FileUtils#INVALID_INT}
+     */
+    int getLatestMax() {
+        return mLatestMax;
+    }
+
+    private static boolean isFastState(int state) {
+        return state == ThermalUtils.STATE_GAMING || state == ThermalUtils.STATE_BENCHMARK;
+    }
+
+    private void enumerate() {
+        final File[] dirs = new File(THERMAL_CLASS).listFiles(
+                (dir, name) -> name.startsWith(ZONE_PREFIX));
+        if (dirs == null) {
+            Log.w(TAG, "No thermal zones in " + THERMAL_CLASS);
+            return;
+        }
+        Arrays.sort(dirs, (a, b) -> Integer.compare(zoneNumber(a), zoneNumber(b)));
+
+        final ArrayList<String> types = new ArrayList<>();
+        final ArrayList<String> paths = new ArrayList<>();
+        final ArrayList<String> fallbackTypes = new ArrayList<>();
+        final ArrayList<String> fallbackPaths = new ArrayList<>();
+        for (File dir : dirs) {
+            final String type = FileUtils.readOneLine(dir + "/type");
+            if (type == null) {
+                continue;
+            }
+            final String path = dir + "/temp";
+            if (mWantedTypes.contains(type)) {
+                types.add(type);
+                paths.add(path);
+            } else if (fallbackTypes.size() < MAX_FALLBACK_ZONES) {
+                fallbackTypes.add(type);
+                fallbackPaths.add(path);
+            }
+        }
+        if (types.isEmpty()) {
+            types.addAll(fallbackTypes);
+            paths.addAll(fallbackPaths);
+        }
+
+        synchronized (this) {
+            mTypes = types.toArray(new String[0]);
+            mTempPaths = paths.toArray(new String[0]);
+            mTemps = new int[CAPACITY * mTypes.length];
+            mReadings = new int[mTypes.length];
+            mHead = 0;
+            mCount = 0;
+        }
+        if (DEBUG) Log.d(TAG, "Sampling " + Arrays.toString(mTypes));
+    }
+
+    private static int zoneNumber(File dir) {
+        try {
+            return Integer.parseInt(dir.getName().substring(ZONE_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private void sample() {
+        final int zones = mTempPaths.length;
+        if (zones == 0 || !mScreenOn) {
+            return;
+        }
+
+        // Kernel reads stay outside the lock, so summarize() never waits on them
+        int max = FileUtils.INVALID_INT;
+        for (int z = 0; z < zones; z++) {
+            mReadings[z] = FileUtils.readInt(mTempPaths[z]);
+            if (mReadings[z] > max) max = mReadings[z];
+        }
+        final long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            System.arraycopy(mReadings, 0, mTemps, mHead * zones, zones);
+            mTimes[mHead] = now;
+            mStates[mHead] = mState;
+            mHead = (mHead + 1) % CAPACITY;
+            if (mCount < CAPACITY) mCount++;
+        }
+        mLatestMax = max;
+
+        reschedule(isFastState(mState) || max >= HOT_MILLI_CELSIUS
+                ? FAST_INTERVAL_MS : NORMAL_INTERVAL_MS);
+    }
+
+    private void reschedule(long delay) {
+        mHandler.removeCallbacks(mSampleRunnable);
+        mHandler.postDelayed(mSampleRunnable, delay);
+    }
+
+    static final class Summary {
+        final String zone;
+        final int state;
+        final int samples;
+        final int min;
+        final int max;
+        final int p95;
+
+        private Summary(String zone, int state, int samples, int min, int max, int p95) {
+            this.zone = zone;
+            this.state = state;
+            this.samples = samples;
+            this.min = min;
+            this.max = max;
+            this.p95 = p95;
+        }
+    }
+
+    /**
+     * @return min/max/p95 in millidegrees Celsius of every zone for every
+     * profile seen in the buffered samples
+     */
+    synchronized List<Summary> summarize() {
+        final ArrayList<Summary> summaries = new ArrayList<>();
+        final int zones = mTypes.length;
+        final int[] scratch = new int[mCount];
+        for (int z = 0; z < zones; z++) {
+            for (int state = ThermalUtils.STATE_DEFAULT;
+                    state <= ThermalUtils.STATE_STREAMING; state++) {
+                int n = 0;
+                for (int i = 0; i < mCount; i++) {
+                    final int temp = mTemps[i * zones + z];
+                    if (mStates[i] == state && temp != FileUtils.INVALID_INT) {
+                        scratch[n++] = temp;
+                    }
+                }
+                if (n == 0) {
+                    continue;
+                }
+                Arrays.sort(scratch, 0, n);
+                final int p95 = scratch[Math.max((n * 95 + 99) / 100 - 1, 0)];
+                summaries.add(new Summary(mTypes[z], state, n, scratch[0], scratch[n - 1], p95));
+            }
+        }
+        return summaries;
+    }
+
+    void dump(PrintWriter pw) {
+        final String types;
+        final int count;
+        final long oldest;
+        synchronized (this) {
+            types = Arrays.toString(mTypes);
+            count = mCount;
+            oldest = count == 0 ? 0 : mTimes[(mHead - count + CAPACITY) % CAPACITY];
+        }
+        pw.println("  thermal zones: " + types + ", " + count
+                + " samples since " + oldest + ", hottest now " + mLatestMax);
+        for (Summary s : summarize()) {
+            pw.println("    " + s.zone + " state=" + s.state + " n=" + s.samples
+                    + " min=" + s.min + " max=" + s.max + " p95=" + s.p95);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.utils;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tells what kind of app a package is from what the system already knows
+ * about it, so that apps without a profile can get a suggested one.
+ *
+ * Results are cached per package along with the version they were computed
+ * for. All installed packages are classified in the background at start and
+ * again whenever one is added or replaced, so lookups never query
+ * PackageManager. A package which is not known yet counts as CLASS_NONE until
+ * its background classification is done.
+ */
+public final class AppClassifier {
+    private static final String TAG = "AppClassifier";
+
+    public static final int CLASS_NONE = 0;
+    public static final int CLASS_GAME = 1;
+    public static final int CLASS_VIDEO = 2;
+
+    // Stands in for a package until its classification is done
+    private static final Entry PENDING = new Entry(-1, CLASS_NONE);
+
+    private static AppClassifier sInstance;
+
+    private final PackageManager mPackageManager;
+    private final Handler mHandler;
+    private final ConcurrentHashMap<String, Entry> mCache = new ConcurrentHashMap<>();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mInvalidations = new AtomicLong();
+
+    /**
+     * @return the process-wide classifier, started on first use
+     */
+    public static synchronized AppClassifier get(Context context) {
+        if (sInstance == null) {
+            sInstance = new AppClassifier(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private AppClassifier(Context context) {
+        mPackageManager = context.getPackageManager();
+        final HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.registerReceiver(mPackageReceiver, filter, null, mHandler);
+        mHandler.post(this::classifyAll);
+    }
+
+    /**
+     * @return CLASS_* of the given package, CLASS_NONE if not known yet
+     */
+    public int getAppClass(String packageName) {
+        final Entry entry = mCache.get(packageName);
+        if (entry != null) {
+            return entry.appClass;
+        }
+        if (mCache.putIfAbsent(packageName, PENDING) == null) {
+            mMisses.incrementAndGet();
+            mHandler.post(() -> classify(packageName));
+        }
+        return CLASS_NONE;
+    }
+
+    @SuppressWarnings("deprecation")
+    static int classify(ApplicationInfo info) {
+        if (info == null) {
+            return CLASS_NONE;
+        }
+        if (info.category == ApplicationInfo.CATEGORY_GAME
+                || (info.flags & ApplicationInfo.FLAG_IS_GAME) != 0) {
+            return CLASS_GAME;
+        }
+        if (info.category == ApplicationInfo.CATEGORY_VIDEO) {
+            return CLASS_VIDEO;
+        }
+        return CLASS_NONE;
+    }
+
+    private void classifyAll() {
+        final List<PackageInfo> packages =
+                mPackageManager.getInstalledPackages(PackageManager.PackageInfoFlags.of(0));
+        for (PackageInfo info : packages) {
+            update(info);
+        }
+    }
+
+    private void classify(String packageName) {
+        try {
+            update(mPackageManager.getPackageInfo(packageName,
+                    PackageManager.PackageInfoFlags.of(0)));
+        } catch (PackageManager.NameNotFoundException e) {
+            // Keep answering CLASS_NONE without asking again
+            mCache.put(packageName, new Entry(-1, CLASS_NONE));
+        }
+    }
+
+    private void update(PackageInfo info) {
+        final long versionCode = info.getLongVersionCode();
+        final Entry entry = mCache.get(info.packageName);
+        if (entry != null && entry != PENDING && entry.versionCode == versionCode) {
+            return;
+        }
+        mCache.put(info.packageName, new Entry(versionCode, classify(info.applicationInfo)));
+    }
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final Uri data = intent.getData();
+            if (data == null) {
+                return;
+            }
+            final String packageName = data.getSchemeSpecificPart();
+            final boolean replacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
+            // Removal during an update is followed by PACKAGE_REPLACED
+            if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction()) && replacing) {
+                return;
+            }
+            if (mCache.remove(packageName) != null) {
+                mInvalidations.incrementAndGet();
+            }
+            if (!Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())) {
+                classify(packageName);
+            }
+        }
+    };
+
+    public void dump(PrintWriter pw) {
+        final int[] counts = new int[CLASS_VIDEO + 1];
+        for (Entry entry : mCache.values()) {
+            counts[entry.appClass]++;
+        }
+        pw.println("App classifier: packages=" + mCache.size() + " games=" + counts[CLASS_GAME]
+                + " video=" + counts[CLASS_VIDEO] + " misses=" + mMisses.get()
+                + " invalidations=" + mInvalidations.get());
+    }
+
+    private static final class Entry {
+        final long versionCode;
+        final int appClass;
+
+        Entry(long versionCode, int appClass) {
+            this.versionCode = versionCode;
+            this.appClass = appClass;
+        }
+    }
+}
@@ -25,10 +25,33 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public final class FileUtils {
     private static final String TAG = "FileUtils";
 
+    /** Returned by {@link #readInt} for missing or unparsable nodes */
+    public static final int INVALID_INT = Integer.MIN_VALUE;
+    /** Returned by {@link #readLong} for missing or unparsable nodes */
+    public static final long INVALID_LONG = Long.MIN_VALUE;
+
+    private static final ThreadLocal<ByteBuffer> sReadBuffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(32));
+
+    private static final ExecutorService sIoExecutor = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "XiaomiParts.sysfs");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private FileUtils() {
         // This class is not supposed to be instantiated
     }
@@ -41,16 +64,21 @@ public final class FileUtils {
      * @return the read line contents, or null on failure
      */
     public static String readOneLine(String fileName) {
+        final long start = System.nanoTime();
+        // Only the first failure for a path is logged in full, later ones are counted
+        final boolean quiet = SysfsIoStats.hasFailed(fileName);
+        boolean ok = false;
         String line = null;
         BufferedReader reader = null;
 
         try {
             reader = new BufferedReader(new FileReader(fileName), 512);
             line = reader.readLine();
+            ok = true;
         } catch (FileNotFoundException e) {
-            Log.w(TAG, "No such file " + fileName + " for reading", e);
+            if (!quiet) Log.w(TAG, "No such file " + fileName + " for reading", e);
         } catch (IOException e) {
-            Log.e(TAG, "Could not read from file " + fileName, e);
+            if (!quiet) Log.e(TAG, "Could not read from file " + fileName, e);
         } finally {
             try {
                 if (reader != null) {
@@ -61,25 +89,129 @@ public final class FileUtils {
             }
         }
 
+        SysfsIoStats.recordRead(fileName, start, ok);
         return line;
     }
 
     /**
-     * Writes the given value into the given file
+     * Reads a decimal integer from the start of the given file, e.g. a
+     * thermal zone temperature. The node's handle is kept open and the digits
+     * are parsed straight from a per-thread buffer, so polling doesn't
+     * allocate.
+     *
+     * @return the parsed value, or {@link #INVALID_INT} on failure
+     */
+    public static int readInt(String fileName) {
+        final long value = readLong(fileName);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            return INVALID_INT;
+        }
+        return (int) value;
+    }
+
+    /**
+     * Reads a decimal long from the start of the given file.
+     * See {@link #readInt} for details.
+     *
+     * @return the parsed value, or {@link #INVALID_LONG} on failure
+     */
+    public static long readLong(String fileName) {
+        final long start = System.nanoTime();
+        final ByteBuffer buffer = sReadBuffer.get();
+        final boolean ok = SysfsNodeRegistry.read(fileName, buffer) > 0;
+        SysfsIoStats.recordRead(fileName, start, ok);
+        return ok ? parseLong(buffer) : INVALID_LONG;
+    }
+
+    static long parseLong(ByteBuffer buffer) {
+        int pos = buffer.position();
+        final int limit = buffer.limit();
+        while (pos < limit && (buffer.get(pos) == ' ' || buffer.get(pos) == '\t')) {
+            pos++;
+        }
+
+        boolean negative = false;
+        if (pos < limit && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+            negative = buffer.get(pos) == '-';
+            pos++;
+        }
+
+        final int start = pos;
+        long value = 0;
+        while (pos < limit) {
+            final int digit = buffer.get(pos) - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            if (value > (Long.MAX_VALUE - digit) / 10) {
+                return INVALID_LONG;
+            }
+            value = value * 10 + digit;
+            pos++;
+        }
+
+        if (pos == start) {
+            return INVALID_LONG;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Writes the given value into the given file, even if it is known to
+     * contain that value already. Nodes registered with
+     * {@link SysfsNodeRegistry} reuse their already open handle.
      *
      * @return true on success, false on failure
      */
     public static boolean writeLine(String fileName, String value) {
+        return writeLine(fileName, value, false);
+    }
+
+    private static boolean writeLine(String fileName, String value, boolean quiet) {
+        final long start = System.nanoTime();
+        // Only the first failure for a path is logged in full, later ones are counted
+        quiet |= SysfsIoStats.hasFailed(fileName);
+        final boolean ok;
+        if (SysfsNodeRegistry.isRegistered(fileName)) {
+            ok = SysfsNodeRegistry.write(fileName, value, quiet);
+        } else {
+            ok = writeLineDirect(fileName, value, quiet);
+        }
+        SysfsIoStats.recordWrite(fileName, start, ok);
+
+        if (ok) {
+            SysfsWriteCache.update(fileName, value);
+        } else {
+            SysfsWriteCache.invalidate(fileName);
+        }
+        return ok;
+    }
+
+    /**
+     * Writes the given value into the given file unless the last value
+     * written through FileUtils is the same. Callers which can't rule out
+     * other writers must invalidate {@link SysfsWriteCache} when needed.
+     *
+     * @return true on success or if the write was skipped, false on failure
+     */
+    public static boolean writeLineIfChanged(String fileName, String value) {
+        if (SysfsWriteCache.isCurrent(fileName, value)) {
+            return true;
+        }
+        return writeLine(fileName, value);
+    }
+
+    private static boolean writeLineDirect(String fileName, String value, boolean quiet) {
         BufferedWriter writer = null;
 
         try {
             writer = new BufferedWriter(new FileWriter(fileName));
             writer.write(value);
         } catch (FileNotFoundException e) {
-            Log.w(TAG, "No such file " + fileName + " for writing", e);
+            if (!quiet) Log.w(TAG, "No such file " + fileName + " for writing", e);
             return false;
         } catch (IOException e) {
-            Log.e(TAG, "Could not write to file " + fileName, e);
+            if (!quiet) Log.e(TAG, "Could not write to file " + fileName, e);
             return false;
         } finally {
             try {
@@ -94,6 +226,67 @@ public final class FileUtils {
         return true;
     }
 
+    /**
+     * Queues a forced write of the given value, see {@link #writeLine}.
+     * Writes to the same node are applied in order, a write which has not
+     * started yet is replaced by a newer one for the same node.
+     *
+     * @return future completing with true on success, false on failure
+     */
+    public static CompletableFuture<Boolean> writeLineAsync(String fileName, String value) {
+        return SysfsWriteQueue.enqueue(fileName, value, true);
+    }
+
+    /**
+     * Queues a write of the given value, see {@link #writeLineIfChanged} and
+     * {@link #writeLineAsync}
+     *
+     * @return future completing with true on success or if the write was
+     * skipped, false on failure
+     */
+    public static CompletableFuture<Boolean> writeLineIfChangedAsync(String fileName,
+            String value) {
+        return SysfsWriteQueue.enqueue(fileName, value, false);
+    }
+
+    /**
+     * Dumps all FileUtils statistics: latencies and failures per path, the
+     * write cache and the asynchronous write queue
+     */
+    public static void dump(PrintWriter pw) {
+        SysfsIoStats.dump(pw);
+        SysfsWriteCache.dump(pw);
+        SysfsWriteQueue.dump(pw);
+    }
+
+    /**
+     * Writes all given values in iteration order, as a single task on the
+     * sysfs I/O thread. Every node gets exactly one attempt and failures are
+     * logged once for the whole batch.
+     *
+     * @return future completing with the result of each write, keyed by node
+     */
+    public static CompletableFuture<Map<String, Boolean>> writeAll(Map<String, String> values) {
+        final Map<String, String> batch = new LinkedHashMap<>(values);
+        return CompletableFuture.supplyAsync(() -> {
+            final Map<String, Boolean> results = new LinkedHashMap<>();
+            List<String> failed = null;
+            for (Map.Entry<String, String> entry : batch.entrySet()) {
+                final boolean ok = writeLine(entry.getKey(), entry.getValue(), true);
+                if (!ok) {
+                    if (failed == null) failed = new ArrayList<>();
+                    failed.add(entry.getKey());
+                }
+                results.put(entry.getKey(), ok);
+            }
+            if (failed != null) {
+                Log.w(TAG, "Could not write " + failed.size() + " of " + batch.size()
+                        + " nodes: " + failed);
+            }
+            return results;
+        }, sIoExecutor);
+    }
+
     /**
      * Checks whether the given file exists
      *
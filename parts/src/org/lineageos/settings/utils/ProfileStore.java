@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Persistent package name to profile mapping.
+ *
+ * Besides package names, keys may be "package/class" component keys made by
+ * {@link #componentKey}. Those are indexed per package, so a component lookup
+ * is one hash lookup for the package and one for the class before falling
+ * back to the package entry.
+ *
+ * The full mapping lives in a versioned binary snapshot. Edits are appended
+ * to a journal as single records, which gets folded back into the snapshot
+ * once it has grown past the size of the mapping itself. The snapshot is
+ * replaced through a rename, and a torn record at the end of the journal is
+ * dropped on load, so a crash at any point loses at most the edits which
+ * were not written yet.
+ *
+ * Lookups read concurrent maps and neither lock nor allocate. Edits update
+ * those maps in place under the store's lock, which stay the source of truth
+ * for reads, and queue their record. Journal writes and compaction run in
+ * edit order on a background thread, so callers never wait for the disk.
+ */
+public final class ProfileStore {
+    private static final String TAG = "ProfileStore";
+
+    private static final int MAGIC = 0x58505053; // "XPPS"
+    static final int VERSION = 1;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    // The journal is compacted once it holds more records than this, or
+    // than there are entries, whichever is bigger
+    private static final int MIN_COMPACT_RECORDS = 64;
+
+    private static final HashMap<String, ProfileStore> sStores = new HashMap<>();
+
+    // Serial, shared by all stores
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "XiaomiParts.profiles");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public interface Listener {
+        void onProfileChanged(String packageName);
+    }
+
+    private final File mFile;
+    private final File mJournalFile;
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    // Written under the store's lock, read without
+    private final ConcurrentHashMap<String, Integer> mValues = new ConcurrentHashMap<>();
+    // Class name to profile for every package with component entries
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>> mComponents =
+            new ConcurrentHashMap<>();
+    private int mComponentCount;
+    private boolean mExisted;
+
+    // Only used on sExecutor
+    private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream(64);
+    private FileOutputStream mJournal;
+    // Written on sExecutor, read by dump()
+    private volatile int mJournalRecords;
+
+    /**
+     * @return the process-wide store with the given name
+     */
+    public static ProfileStore get(Context context, String name) {
+        final File file = new File(context.getFilesDir(), name + ".profiles");
+        synchronized (sStores) {
+            ProfileStore store = sStores.get(file.getPath());
+            if (store == null) {
+                store = new ProfileStore(file);
+                sStores.put(file.getPath(), store);
+            }
+            return store;
+        }
+    }
+
+    private ProfileStore(File file) {
+        mFile = file;
+        mJournalFile = new File(file.getPath() + ".journal");
+        load();
+    }
+
+    /**
+     * @return whether the store has ever been written, false means a legacy
+     * configuration may still have to be migrated
+     */
+    public synchronized boolean exists() {
+        return mExisted;
+    }
+
+    /**
+     * @return the key under which the given activity's own profile is stored
+     */
+    public static String componentKey(String packageName, String className) {
+        return packageName + '/' + className;
+    }
+
+    public int get(String packageName, int defaultValue) {
+        final Integer value = mValues.get(packageName);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * Looks up the profile of the given activity, falling back to the one of
+     * its package
+     *
+     * @param className may be null to only look at the package
+     */
+    public int get(String packageName, String className, int defaultValue) {
+        if (className != null) {
+            final Map<String, Integer> classes = mComponents.get(packageName);
+            if (classes != null) {
+                final Integer value = classes.get(className);
+                if (value != null) {
+                    return value;
+                }
+            }
+        }
+        final Integer value = mValues.get(packageName);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * @return an unmodifiable class name to profile view of the activities of
+     * the given package which have their own profile
+     */
+    public Map<String, Integer> getComponents(String packageName) {
+        final Map<String, Integer> classes = mComponents.get(packageName);
+        return classes != null ? Collections.unmodifiableMap(classes) : Collections.emptyMap();
+    }
+
+    /**
+     * @return an unmodifiable view of all entries
+     */
+    public Map<String, Integer> getAll() {
+        return Collections.unmodifiableMap(mValues);
+    }
+
+    public void put(String packageName, int value) {
+        synchronized (this) {
+            final Integer old = mValues.get(packageName);
+            if (old != null && old == value) {
+                return;
+            }
+            set(packageName, value);
+            mExisted = true;
+            // Queued under the lock, so that records keep the order of the edits
+            sExecutor.execute(() -> append(OP_PUT, packageName, value));
+        }
+        notifyChanged(packageName);
+    }
+
+    public void remove(String packageName) {
+        synchronized (this) {
+            if (!mValues.containsKey(packageName)) {
+                return;
+            }
+            unset(packageName);
+            mExisted = true;
+            sExecutor.execute(() -> append(OP_REMOVE, packageName, 0));
+        }
+        notifyChanged(packageName);
+    }
+
+    /**
+     * Adds all given entries and writes a fresh snapshot, meant for migrations
+     */
+    public void putAll(Map<String, Integer> entries) {
+        synchronized (this) {
+            for (Map.Entry<String, Integer> entry : entries.entrySet()) {
+                set(entry.getKey(), entry.getValue());
+            }
+            mExisted = true;
+            sExecutor.execute(this::compact);
+        }
+        for (String packageName : entries.keySet()) {
+            notifyChanged(packageName);
+        }
+    }
+
+    /**
+     * Imports a legacy "name=pkg,pkg,:name=pkg,:..." preference once, unless
+     * this store has been written before, and removes it either way
+     *
+     * @param firstValue value of the packages in the first segment, every
+     *                   following segment counts one up
+     */
+    public void migrate(SharedPreferences prefs, String key, int firstValue) {
+        final String legacy = prefs.getString(key, null);
+        if (legacy == null) {
+            return;
+        }
+        if (exists()) {
+            // Left over from before, what the store holds is newer
+            prefs.edit().remove(key).apply();
+            return;
+        }
+
+        final HashMap<String, Integer> entries = new HashMap<>();
+        final String[] segments = legacy.split(":");
+        for (int i = 0; i < segments.length; i++) {
+            final String packages = segments[i].substring(segments[i].indexOf('=') + 1);
+            for (String packageName : packages.split(",")) {
+                if (!packageName.isEmpty()) {
+                    entries.putIfAbsent(packageName, firstValue + i);
+                }
+            }
+        }
+        putAll(entries);
+        prefs.edit().remove(key).apply();
+        Log.i(TAG, "Migrated " + entries.size() + " entries from " + key);
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void notifyChanged(String packageName) {
+        for (Listener listener : mListeners) {
+            listener.onProfileChanged(packageName);
+        }
+    }
+
+    // Called with the store's lock held, or from the constructor
+    private void set(String key, int value) {
+        mValues.put(key, value);
+        final int slash = key.indexOf('/');
+        if (slash < 0) {
+            return;
+        }
+        ConcurrentHashMap<String, Integer> classes = mComponents.get(key.substring(0, slash));
+        if (classes == null) {
+            classes = new ConcurrentHashMap<>();
+            mComponents.put(key.substring(0, slash), classes);
+        }
+        if (classes.put(key.substring(slash + 1), value) == null) {
+            mComponentCount++;
+        }
+    }
+
+    private void unset(String key) {
+        mValues.remove(key);
+        final int slash = key.indexOf('/');
+        if (slash < 0) {
+            return;
+        }
+        final String packageName = key.substring(0, slash);
+        final Map<String, Integer> classes = mComponents.get(packageName);
+        if (classes != null && classes.remove(key.substring(slash + 1)) != null) {
+            mComponentCount--;
+            if (classes.isEmpty()) {
+                mComponents.remove(packageName);
+            }
+        }
+    }
+
+    private void load() {
+        final HashMap<String, Integer> values = new HashMap<>();
+        mExisted = mFile.exists() || mJournalFile.exists();
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (readHeader(in)) {
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    final String packageName = in.readUTF();
+                    values.put(packageName, in.readInt());
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing stored yet
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + mFile + ", keeping what was read", e);
+        }
+
+        int records = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mJournalFile)))) {
+            if (readHeader(in)) {
+                while (true) {
+                    final byte op = in.readByte();
+                    final String packageName = in.readUTF();
+                    final int value = in.readInt();
+                    if (op == OP_PUT) {
+                        values.put(packageName, value);
+                    } else if (op == OP_REMOVE) {
+                        values.remove(packageName);
+                    } else {
+                        Log.w(TAG, "Unknown record " + op + " in " + mJournalFile);
+                        break;
+                    }
+                    records++;
+                }
+            }
+        } catch (EOFException | FileNotFoundException e) {
+            // End of the journal, possibly a torn last record
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + mJournalFile + ", keeping what was read", e);
+        }
+
+        for (Map.Entry<String, Integer> entry : values.entrySet()) {
+            set(entry.getKey(), entry.getValue());
+        }
+        if (records > 0) {
+            // Start from a clean journal, without a possibly torn tail
+            sExecutor.execute(this::compact);
+        } else {
+            sExecutor.execute(mJournalFile::delete);
+        }
+    }
+
+    private boolean readHeader(DataInputStream in) throws IOException {
+        final int magic = in.readInt();
+        final int version = in.readInt();
+        if (magic != MAGIC || version > VERSION) {
+            Log.w(TAG, "Ignoring unsupported store, magic " + Integer.toHexString(magic)
+                    + " version " + version);
+            return false;
+        }
+        return true;
+    }
+
+    private static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    // Runs on sExecutor
+    private void append(byte op, String packageName, int value) {
+        if (mJournalRecords >= Math.max(MIN_COMPACT_RECORDS, mValues.size())) {
+            compact();
+            return;
+        }
+
+        try {
+            mRecord.reset();
+            final DataOutputStream record = new DataOutputStream(mRecord);
+            if (mJournal == null) {
+                final boolean fresh = mJournalFile.length() == 0;
+                mJournal = new FileOutputStream(mJournalFile, true);
+                if (fresh) {
+                    writeHeader(record);
+                }
+            }
+            record.writeByte(op);
+            record.writeUTF(packageName);
+            record.writeInt(value);
+            // One write() per edit, so a crash tears at most this record
+            mRecord.writeTo(mJournal);
+            mJournalRecords++;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not append to " + mJournalFile + ", compacting instead", e);
+            compact();
+        }
+    }
+
+    // Runs on sExecutor
+    private void compact() {
+        closeJournal();
+
+        // Edits made after the copy are queued behind this, and replaying
+        // them over the new snapshot gives the same mapping
+        final HashMap<String, Integer> values;
+        synchronized (this) {
+            values = new HashMap<>(mValues);
+        }
+
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(tmp)) {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            writeHeader(out);
+            out.writeInt(values.size());
+            for (Map.Entry<String, Integer> entry : values.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+            out.flush();
+            stream.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + tmp, e);
+            tmp.delete();
+            return;
+        }
+
+        if (!tmp.renameTo(mFile)) {
+            Log.e(TAG, "Could not rename " + tmp + " to " + mFile);
+            tmp.delete();
+            return;
+        }
+        // Replaying the old journal over the new snapshot would be harmless,
+        // so a crash before this point does not lose anything
+        mJournalFile.delete();
+        mJournalRecords = 0;
+    }
+
+    private void closeJournal() {
+        try {
+            if (mJournal != null) {
+                mJournal.close();
+            }
+        } catch (IOException e) {
+            // Ignored, not much we can do anyway
+        }
+        mJournal = null;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Profile store " + mFile.getName() + ": entries="
+                + mValues.size() + " components=" + mComponentCount
+                + " journal=" + mJournalRecords);
+    }
+}
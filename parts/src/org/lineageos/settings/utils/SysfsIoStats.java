@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.utils;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-path latency histograms and success/failure counters for FileUtils.
+ *
+ * Recording is two atomic increments and a hash lookup, there are no locks
+ * and no allocations once a path has been seen.
+ */
+public final class SysfsIoStats {
+
+    // Bucket i holds latencies below 2^i us, the last one everything above
+    static final int BUCKETS = 20;
+
+    private static final ConcurrentHashMap<String, PathStats> sStats = new ConcurrentHashMap<>();
+
+    private SysfsIoStats() {
+        // This class is not supposed to be instantiated
+    }
+
+    static void recordRead(String fileName, long startNs, boolean ok) {
+        get(fileName).mRead.record(System.nanoTime() - startNs, ok);
+    }
+
+    static void recordWrite(String fileName, long startNs, boolean ok) {
+        get(fileName).mWrite.record(System.nanoTime() - startNs, ok);
+    }
+
+    /**
+     * Checks whether any access to the given path failed before, so that
+     * callers only log the first failure in full
+     */
+    static boolean hasFailed(String fileName) {
+        final PathStats stats = sStats.get(fileName);
+        return stats != null
+                && (stats.mRead.mFailures.get() != 0 || stats.mWrite.mFailures.get() != 0);
+    }
+
+    private static PathStats get(String fileName) {
+        PathStats stats = sStats.get(fileName);
+        if (stats == null) {
+            stats = sStats.computeIfAbsent(fileName, k -> new PathStats());
+        }
+        return stats;
+    }
+
+    static int bucketFor(long latencyNs) {
+        final long us = latencyNs / 1000;
+        final int bucket = 64 - Long.numberOfLeadingZeros(us);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    public static void dump(PrintWriter pw) {
+        pw.println("Sysfs I/O stats (latency buckets are upper bounds in us):");
+        for (Map.Entry<String, PathStats> e : new TreeMap<>(sStats).entrySet()) {
+            pw.println("  " + e.getKey());
+            e.getValue().mRead.dump(pw, "read");
+            e.getValue().mWrite.dump(pw, "write");
+        }
+    }
+
+    private static final class PathStats {
+        final OpStats mRead = new OpStats();
+        final OpStats mWrite = new OpStats();
+    }
+
+    private static final class OpStats {
+        final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        final AtomicLong mSuccesses = new AtomicLong();
+        final AtomicLong mFailures = new AtomicLong();
+
+        void record(long latencyNs, boolean ok) {
+            mBuckets.incrementAndGet(bucketFor(latencyNs));
+            (ok ? mSuccesses : mFailures).incrementAndGet();
+        }
+
+        void dump(PrintWriter pw, String name) {
+            final long successes = mSuccesses.get();
+            final long failures = mFailures.get();
+            final long total = successes + failures;
+            if (total == 0) {
+                return;
+            }
+
+            final StringBuilder histogram = new StringBuilder();
+            long seen = 0;
+            String p50 = null;
+            String p99 = null;
+            for (int i = 0; i < BUCKETS; i++) {
+                final long count = mBuckets.get(i);
+                if (count == 0) {
+                    continue;
+                }
+                final String bound = i == BUCKETS - 1 ? "inf" : Long.toString(1L << i);
+                histogram.append(' ').append(bound).append(':').append(count);
+                seen += count;
+                if (p50 == null && seen * 2 >= total) p50 = bound;
+                if (p99 == null && seen * 100 >= total * 99) p99 = bound;
+            }
+            pw.println("    " + name + ": ok=" + successes + " failed=" + failures
+                    + " p50<" + p50 + "us p99<" + p99 + "us |" + histogram);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.utils;
+
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps an open {@link FileChannel} for frequently written sysfs nodes so that
+ * repeated writes only cost a single pwrite() instead of open/write/close.
+ *
+ * Every write is issued at offset 0, which sysfs hands to the driver's store
+ * callback as a complete value. Regular files are not truncated, so this is
+ * only meant for sysfs attributes.
+ *
+ * Read handles are kept apart: reading a node neither registers it for
+ * writing, nor keeps it around once its handle has gone idle.
+ */
+public final class SysfsNodeRegistry {
+    private static final String TAG = "SysfsNodeRegistry";
+
+    // Handles which were not used for this long are closed on the next sweep
+    static final long IDLE_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(30);
+    // Missing nodes are not looked up again for this long
+    static final long MISSING_RETRY_NS = TimeUnit.SECONDS.toNanos(10);
+
+    // Returned by a read node which was dropped from sReadNodes meanwhile
+    private static final int RETIRED = -2;
+
+    // Registered for writing, kept for the lifetime of the process
+    private static final ConcurrentHashMap<String, Node> sNodes = new ConcurrentHashMap<>();
+    // Read through readInt/readLong, dropped once idle
+    private static final ConcurrentHashMap<String, Node> sReadNodes = new ConcurrentHashMap<>();
+    private static volatile long sLastSweep = System.nanoTime();
+
+    private SysfsNodeRegistry() {
+        // This class is not supposed to be instantiated
+    }
+
+    /**
+     * Marks the given node as hot, so that {@link FileUtils#writeLine} keeps
+     * its handle open between writes
+     */
+    public static void register(String fileName) {
+        sNodes.computeIfAbsent(fileName, Node::new);
+    }
+
+    /**
+     * Checks whether the given node has been registered as hot
+     */
+    public static boolean isRegistered(String fileName) {
+        return sNodes.containsKey(fileName);
+    }
+
+    /**
+     * Writes the given value into a registered node, reopening the handle once
+     * if the cached one went stale (node recreated, fd invalidated)
+     *
+     * @return true on success, false on failure
+     */
+    public static boolean write(String fileName, String value) {
+        return write(fileName, value, false);
+    }
+
+    static boolean write(String fileName, String value, boolean quiet) {
+        final Node node = sNodes.get(fileName);
+        if (node == null) {
+            return false;
+        }
+
+        final long now = System.nanoTime();
+        final boolean ok = node.write(value.getBytes(StandardCharsets.UTF_8), now, quiet);
+        if (now - sLastSweep > IDLE_TIMEOUT_NS) {
+            sLastSweep = now;
+            closeIdle(now);
+        }
+        return ok;
+    }
+
+    /**
+     * Reads the start of the given node into the buffer, which is cleared
+     * first and flipped for reading afterwards. The read handle is kept open
+     * until it has been idle for {@link #IDLE_TIMEOUT_NS}.
+     *
+     * @return the number of bytes read, or -1 if the node is missing or
+     * could not be read
+     */
+    static int read(String fileName, ByteBuffer buffer) {
+        final long now = System.nanoTime();
+        int count;
+        do {
+            Node node = sReadNodes.get(fileName);
+            if (node == null) {
+                node = sReadNodes.computeIfAbsent(fileName, Node::new);
+            }
+            count = node.read(buffer, now);
+        } while (count == RETIRED);
+
+        if (now - sLastSweep > IDLE_TIMEOUT_NS) {
+            sLastSweep = now;
+            closeIdle(now);
+        }
+        return count;
+    }
+
+    /**
+     * Closes all handles which have been idle for longer than the timeout
+     */
+    public static void closeIdle(long now) {
+        for (Node node : sNodes.values()) {
+            node.closeIfIdle(now);
+        }
+        for (Map.Entry<String, Node> entry : sReadNodes.entrySet()) {
+            if (entry.getValue().retireIfIdle(now)) {
+                sReadNodes.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Closes every open handle. Nodes stay registered and are reopened lazily.
+     */
+    public static void closeAll() {
+        for (Node node : sNodes.values()) {
+            node.close();
+        }
+        for (Node node : sReadNodes.values()) {
+            node.close();
+        }
+    }
+
+    private static final class Node {
+        private final String mPath;
+        private FileOutputStream mStream;
+        private FileChannel mChannel;
+        private FileInputStream mReadStream;
+        private FileChannel mReadChannel;
+        private long mLastUsed;
+        private long mMissingSince;
+        private boolean mMissing;
+        private boolean mRetired;
+
+        Node(String path) {
+            mPath = path;
+        }
+
+        synchronized boolean write(byte[] data, long now, boolean quiet) {
+            mLastUsed = now;
+            try {
+                if (mChannel == null) {
+                    open();
+                }
+                try {
+                    writeFully(data);
+                } catch (IOException e) {
+                    // The node may have been removed and recreated (ENOENT) or our
+                    // fd may have been invalidated (EBADF), try again with a fresh one
+                    close();
+                    open();
+                    writeFully(data);
+                }
+                return true;
+            } catch (FileNotFoundException e) {
+                if (!quiet) Log.w(TAG, "No such file " + mPath + " for writing", e);
+            } catch (IOException e) {
+                if (!quiet) Log.e(TAG, "Could not write to file " + mPath, e);
+            }
+            close();
+            return false;
+        }
+
+        synchronized int read(ByteBuffer buffer, long now) {
+            if (mRetired) {
+                return RETIRED;
+            }
+            mLastUsed = now;
+            buffer.clear();
+            if (mMissing && now - mMissingSince < MISSING_RETRY_NS) {
+                return -1;
+            }
+
+            int count;
+            try {
+                if (mReadChannel == null) {
+                    openForReading();
+                }
+                try {
+                    count = mReadChannel.read(buffer, 0);
+                } catch (IOException e) {
+                    closeForReading();
+                    openForReading();
+                    count = mReadChannel.read(buffer, 0);
+                }
+                mMissing = false;
+            } catch (FileNotFoundException e) {
+                if (!mMissing) Log.w(TAG, "No such file " + mPath + " for reading");
+                mMissing = true;
+                mMissingSince = now;
+                count = -1;
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read from file " + mPath + ": " + e.getMessage());
+                closeForReading();
+                count = -1;
+            }
+            buffer.flip();
+            return count;
+        }
+
+        private void openForReading() throws IOException {
+            mReadStream = new FileInputStream(mPath);
+            mReadChannel = mReadStream.getChannel();
+        }
+
+        private void open() throws IOException {
+            mStream = new FileOutputStream(mPath);
+            mChannel = mStream.getChannel();
+        }
+
+        private void writeFully(byte[] data) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.wrap(data);
+            long position = 0;
+            while (buffer.hasRemaining()) {
+                position += mChannel.write(buffer, position);
+            }
+        }
+
+        synchronized void closeIfIdle(long now) {
+            if ((mChannel != null || mReadChannel != null) && now - mLastUsed > IDLE_TIMEOUT_NS) {
+                close();
+            }
+        }
+
+        /**
+         * Closes the handles of a read node which has been idle for longer
+         * than the timeout, and marks it so that late readers look it up again
+         *
+         * @return true if the node is to be dropped
+         */
+        synchronized boolean retireIfIdle(long now) {
+            if (now - mLastUsed <= IDLE_TIMEOUT_NS) {
+                return false;
+            }
+            close();
+            mRetired = true;
+            return true;
+        }
+
+        synchronized void close() {
+            try {
+                if (mStream != null) {
+                    mStream.close();
+                }
+            } catch (IOException e) {
+                // Ignored, not much we can do anyway
+            }
+            mStream = null;
+            mChannel = null;
+            closeForReading();
+        }
+
+        private void closeForReading() {
+            try {
+                if (mReadStream != null) {
+                    mReadStream.close();
+                }
+            } catch (IOException e) {
+                // Ignored, not much we can do anyway
+            }
+            mReadStream = null;
+            mReadChannel = null;
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.utils;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Delivers value changes of a set of sysfs nodes.
+ *
+ * Nodes are polled for POLLPRI, so drivers calling sysfs_notify() wake us up
+ * right away. Every node is also re-read whenever the poll times out; the
+ * timeout starts short and doubles while nothing changes. Once a node has
+ * proven to notify it is left out of the timed re-reads.
+ *
+ * Without notification support (e.g. a stand-in tree in a temp directory)
+ * the watcher falls back to plain adaptive polling.
+ */
+public final class SysfsWatcher {
+    private static final String TAG = "SysfsWatcher";
+
+    static final long MIN_INTERVAL_MS = 500;
+    static final long MAX_INTERVAL_MS = 16000;
+
+    private static final int MAX_VALUE_LENGTH = 128;
+
+    public interface Callback {
+        void onValueChanged(String fileName, String value);
+    }
+
+    private final String mName;
+    private final Executor mExecutor;
+    private final boolean mUseNotify;
+    private final CopyOnWriteArrayList<Watch> mWatches = new CopyOnWriteArrayList<>();
+    private final Object mLock = new Object();
+
+    private Thread mThread;
+    private FileDescriptor[] mWakePipe;
+    private boolean mWakeRequested;
+    private long mInterval = MIN_INTERVAL_MS;
+
+    /**
+     * @param executor where callbacks are delivered
+     */
+    public SysfsWatcher(String name, Executor executor) {
+        this(name, executor, true);
+    }
+
+    /**
+     * @param useNotify false to rely on polling only
+     */
+    public SysfsWatcher(String name, Executor executor, boolean useNotify) {
+        mName = name;
+        mExecutor = executor;
+        mUseNotify = useNotify;
+    }
+
+    /**
+     * Starts watching the given node. The callback is not invoked for the
+     * value the node has at this point.
+     */
+    public void watch(String fileName, Callback callback) {
+        mWatches.add(new Watch(fileName, callback));
+        wakeUp();
+    }
+
+    public void unwatch(String fileName) {
+        for (Watch watch : mWatches) {
+            if (watch.mPath.equals(fileName)) {
+                mWatches.remove(watch);
+                watch.close();
+            }
+        }
+        wakeUp();
+    }
+
+    public void start() {
+        synchronized (mLock) {
+            if (mThread != null) {
+                return;
+            }
+            FileDescriptor[] wakePipe = null;
+            if (mUseNotify) {
+                try {
+                    wakePipe = Os.pipe2(OsConstants.O_CLOEXEC | OsConstants.O_NONBLOCK);
+                } catch (ErrnoException e) {
+                    Log.w(TAG, mName + ": no wake pipe, falling back to polling", e);
+                }
+            }
+            final FileDescriptor[] pipe = wakePipe;
+            mWakePipe = pipe;
+            mWakeRequested = false;
+            mInterval = MIN_INTERVAL_MS;
+            mThread = new Thread(() -> loop(pipe), "SysfsWatcher." + mName);
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+    }
+
+    public void stop() {
+        synchronized (mLock) {
+            if (mThread == null) {
+                return;
+            }
+            mThread = null;
+        }
+        wakeUp();
+    }
+
+    private void wakeUp() {
+        synchronized (mLock) {
+            mInterval = MIN_INTERVAL_MS;
+            mWakeRequested = true;
+            if (mWakePipe != null) {
+                try {
+                    Os.write(mWakePipe[1], new byte[] { 1 }, 0, 1);
+                } catch (ErrnoException | InterruptedIOException e) {
+                    // The pipe is full, the watcher is awake anyway
+                }
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    private boolean isRunning() {
+        synchronized (mLock) {
+            return mThread == Thread.currentThread();
+        }
+    }
+
+    private void loop(FileDescriptor[] wakePipe) {
+        final ByteBuffer buffer = ByteBuffer.allocate(MAX_VALUE_LENGTH);
+        for (Watch watch : mWatches) {
+            watch.refresh(buffer, false);
+        }
+
+        while (isRunning()) {
+            final long interval;
+            synchronized (mLock) {
+                interval = mInterval;
+                mWakeRequested = false;
+            }
+
+            final Watch[] watches = mWatches.toArray(new Watch[0]);
+            final boolean[] fired = new boolean[watches.length];
+            final boolean timedOut = wakePipe != null
+                    ? pollNotify(watches, fired, wakePipe[0], interval)
+                    : sleep(interval);
+
+            boolean changed = false;
+            for (int i = 0; i < watches.length; i++) {
+                final Watch watch = watches[i];
+                if (fired[i]) {
+                    watch.mNotifies = true;
+                    changed |= watch.refresh(buffer, true);
+                } else if (timedOut && !watch.mNotifies) {
+                    changed |= watch.refresh(buffer, true);
+                } else if (watch.fd() == null) {
+                    // Newly added, or lost and needs reopening. A lost node
+                    // still has its last value, so a change made while it
+                    // was gone is reported.
+                    changed |= watch.refresh(buffer, true);
+                }
+            }
+
+            synchronized (mLock) {
+                if (changed) {
+                    mInterval = MIN_INTERVAL_MS;
+                } else if (timedOut) {
+                    mInterval = Math.min(mInterval * 2, MAX_INTERVAL_MS);
+                }
+            }
+        }
+
+        synchronized (mLock) {
+            if (wakePipe != null) {
+                closeQuietly(wakePipe[0]);
+                closeQuietly(wakePipe[1]);
+            }
+            if (mWakePipe == wakePipe) {
+                mWakePipe = null;
+            }
+            // Unless restarted meanwhile, in which case the new thread uses them
+            if (mThread == null) {
+                for (Watch watch : mWatches) {
+                    watch.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the poll timed out
+     */
+    private boolean pollNotify(Watch[] watches, boolean[] fired, FileDescriptor wakeFd,
+            long timeout) {
+        final int[] index = new int[watches.length];
+        final StructPollfd[] fds = new StructPollfd[watches.length + 1];
+        int open = 0;
+        for (int i = 0; i < watches.length; i++) {
+            final FileDescriptor fd = watches[i].fd();
+            if (fd != null) {
+                final StructPollfd pollfd = new StructPollfd();
+                pollfd.fd = fd;
+                pollfd.events = (short) OsConstants.POLLPRI;
+                index[open] = i;
+                fds[open++] = pollfd;
+            }
+        }
+        final StructPollfd wake = new StructPollfd();
+        wake.fd = wakeFd;
+        wake.events = (short) OsConstants.POLLIN;
+        fds[open] = wake;
+
+        int count;
+        try {
+            count = Os.poll(Arrays.copyOf(fds, open + 1), (int) timeout);
+        } catch (ErrnoException e) {
+            if (e.errno != OsConstants.EINTR) {
+                Log.w(TAG, mName + ": poll failed", e);
+                sleep(timeout);
+            }
+            return true;
+        }
+
+        if (count == 0) {
+            return true;
+        }
+        for (int i = 0; i < open; i++) {
+            fired[index[i]] = (fds[i].revents & (OsConstants.POLLPRI | OsConstants.POLLERR)) != 0;
+        }
+        if ((wake.revents & OsConstants.POLLIN) != 0) {
+            drain(wakeFd);
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the full interval elapsed without a wake up
+     */
+    private boolean sleep(long timeout) {
+        synchronized (mLock) {
+            if (!mWakeRequested) {
+                try {
+                    mLock.wait(timeout);
+                } catch (InterruptedException e) {
+                    // Handled like a time out
+                }
+            }
+            final boolean timedOut = !mWakeRequested;
+            mWakeRequested = false;
+            return timedOut;
+        }
+    }
+
+    private static void drain(FileDescriptor fd) {
+        final byte[] buffer = new byte[16];
+        try {
+            while (Os.read(fd, buffer, 0, buffer.length) > 0) {
+                // Keep reading until EAGAIN
+            }
+        } catch (ErrnoException | InterruptedIOException e) {
+            // Empty now
+        }
+    }
+
+    private static void closeQuietly(FileDescriptor fd) {
+        try {
+            Os.close(fd);
+        } catch (ErrnoException e) {
+            // Ignored, not much we can do anyway
+        }
+    }
+
+    private final class Watch {
+        private final String mPath;
+        private final Callback mCallback;
+        private FileInputStream mStream;
+        private FileChannel mChannel;
+        private FileDescriptor mFd;
+        private byte[] mValue;
+        private volatile boolean mNotifies;
+
+        Watch(String path, Callback callback) {
+            mPath = path;
+            mCallback = callback;
+        }
+
+        synchronized FileDescriptor fd() {
+            return mFd;
+        }
+
+        /**
+         * Re-reads the node, which also re-arms sysfs notification
+         *
+         * @return true if the value changed
+         */
+        synchronized boolean refresh(ByteBuffer buffer, boolean report) {
+            buffer.clear();
+            try {
+                if (mChannel == null) {
+                    mStream = new FileInputStream(mPath);
+                    mChannel = mStream.getChannel();
+                    mFd = mStream.getFD();
+                }
+                mChannel.read(buffer, 0);
+            } catch (IOException e) {
+                close();
+                return false;
+            }
+            buffer.flip();
+
+            int length = buffer.limit();
+            while (length > 0 && Character.isWhitespace(buffer.get(length - 1))) {
+                length--;
+            }
+            if (mValue != null && mValue.length == length) {
+                boolean same = true;
+                for (int i = 0; i < length && same; i++) {
+                    same = mValue[i] == buffer.get(i);
+                }
+                if (same) {
+                    return false;
+                }
+            }
+
+            final byte[] value = new byte[length];
+            buffer.get(value, 0, length);
+            final boolean hadValue = mValue != null;
+            mValue = value;
+            if (report && hadValue) {
+                final String text = new String(value, StandardCharsets.UTF_8);
+                mExecutor.execute(() -> mCallback.onValueChanged(mPath, text));
+            }
+            return hadValue;
+        }
+
+        synchronized void close() {
+            try {
+                if (mStream != null) {
+                    mStream.close();
+                }
+            } catch (IOException e) {
+                // Ignored, not much we can do anyway
+            }
+            mStream = null;
+            mChannel = null;
+            mFd = null;
+        }
+    }
+}
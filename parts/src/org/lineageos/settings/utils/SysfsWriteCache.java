@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.utils;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the last value successfully written to each node, so that
+ * {@link FileUtils#writeLineIfChanged} can skip writes which would not
+ * change anything in the kernel.
+ */
+public final class SysfsWriteCache {
+
+    private static final ConcurrentHashMap<String, Entry> sEntries = new ConcurrentHashMap<>();
+
+    private SysfsWriteCache() {
+        // This class is not supposed to be instantiated
+    }
+
+    /**
+     * Checks whether the given value is known to be the current content of
+     * the node, counting a saved write if so
+     */
+    static boolean isCurrent(String fileName, String value) {
+        final Entry entry = sEntries.get(fileName);
+        return entry != null && entry.skipIfCurrent(value);
+    }
+
+    static void update(String fileName, String value) {
+        sEntries.computeIfAbsent(fileName, k -> new Entry()).written(value);
+    }
+
+    /**
+     * Forgets the cached value of the given node, the next write goes through
+     */
+    public static void invalidate(String fileName) {
+        final Entry entry = sEntries.get(fileName);
+        if (entry != null) {
+            entry.invalidate();
+        }
+    }
+
+    /**
+     * Tells the cache the node was seen holding the given value, e.g. by a
+     * {@link SysfsWatcher}. If someone else changed it, the cached value is
+     * dropped so that the next write goes through.
+     */
+    public static void observed(String fileName, String value) {
+        final Entry entry = sEntries.get(fileName);
+        if (entry != null) {
+            entry.observed(value);
+        }
+    }
+
+    /**
+     * Forgets all cached values, to be used whenever someone else may have
+     * touched the nodes (e.g. the thermal HAL on screen state changes)
+     */
+    public static void invalidateAll() {
+        for (Entry entry : sEntries.values()) {
+            entry.invalidate();
+        }
+    }
+
+    public static void dump(PrintWriter pw) {
+        long written = 0;
+        long skipped = 0;
+        long external = 0;
+        pw.println("Sysfs write cache:");
+        for (Map.Entry<String, Entry> e : sEntries.entrySet()) {
+            final Entry entry = e.getValue();
+            synchronized (entry) {
+                pw.println("  " + e.getKey() + ": value=" + entry.mValue
+                        + " written=" + entry.mWritten + " skipped=" + entry.mSkipped
+                        + " external=" + entry.mExternal);
+                written += entry.mWritten;
+                skipped += entry.mSkipped;
+                external += entry.mExternal;
+            }
+        }
+        pw.println("  total: written=" + written + " skipped=" + skipped
+                + " external=" + external);
+    }
+
+    private static final class Entry {
+        private String mValue;
+        private long mWritten;
+        private long mSkipped;
+        private long mExternal;
+
+        synchronized boolean skipIfCurrent(String value) {
+            if (mValue == null || !mValue.equals(value)) {
+                return false;
+            }
+            mSkipped++;
+            return true;
+        }
+
+        synchronized void written(String value) {
+            mValue = value;
+            mWritten++;
+        }
+
+        synchronized void observed(String value) {
+            if (mValue != null && !mValue.equals(value)) {
+                mValue = null;
+                mExternal++;
+            }
+        }
+
+        synchronized void invalidate() {
+            mValue = null;
+        }
+    }
+}
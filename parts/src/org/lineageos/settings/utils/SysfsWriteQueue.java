@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.utils;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous sysfs writes. Writes to the same node run in submission
+ * order, writes to different nodes may run in parallel.
+ *
+ * Every node has at most one queued write: a value submitted while an older
+ * one is still waiting replaces it, and both callers get the future of the
+ * write that actually happens. The executor queue holds at most one task per
+ * node and is bounded, writes beyond that fail instead of piling up.
+ */
+final class SysfsWriteQueue {
+    private static final String TAG = "SysfsWriteQueue";
+
+    private static final int THREADS = 2;
+    private static final int MAX_QUEUED_NODES = 32;
+
+    private static final AtomicInteger sThreadCount = new AtomicInteger();
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            THREADS, THREADS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(MAX_QUEUED_NODES),
+            r -> {
+                final Thread thread = new Thread(r,
+                        "XiaomiParts.sysfs-" + sThreadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final ConcurrentHashMap<String, NodeQueue> sQueues = new ConcurrentHashMap<>();
+    private static final AtomicLong sSubmitted = new AtomicLong();
+    private static final AtomicLong sCoalesced = new AtomicLong();
+    private static final AtomicLong sRejected = new AtomicLong();
+
+    private SysfsWriteQueue() {
+        // This class is not supposed to be instantiated
+    }
+
+    /**
+     * @param force write even if {@link SysfsWriteCache} says the node already
+     *              holds the value
+     */
+    static CompletableFuture<Boolean> enqueue(String fileName, String value, boolean force) {
+        sSubmitted.incrementAndGet();
+        return sQueues.computeIfAbsent(fileName, NodeQueue::new).enqueue(value, force);
+    }
+
+    static void dump(PrintWriter pw) {
+        pw.println("Sysfs write queue:");
+        pw.println("  submitted=" + sSubmitted.get() + " coalesced=" + sCoalesced.get()
+                + " rejected=" + sRejected.get() + " queued=" + sExecutor.getQueue().size());
+    }
+
+    private static final class NodeQueue implements Runnable {
+        private final String mPath;
+        private String mPendingValue;
+        private boolean mPendingForce;
+        private CompletableFuture<Boolean> mPendingFuture;
+        private boolean mScheduled;
+
+        NodeQueue(String path) {
+            mPath = path;
+        }
+
+        CompletableFuture<Boolean> enqueue(String value, boolean force) {
+            final CompletableFuture<Boolean> future;
+            synchronized (this) {
+                if (mPendingFuture != null) {
+                    mPendingValue = value;
+                    mPendingForce |= force;
+                    sCoalesced.incrementAndGet();
+                    return mPendingFuture;
+                }
+                mPendingValue = value;
+                mPendingForce = force;
+                mPendingFuture = future = new CompletableFuture<>();
+                if (mScheduled) {
+                    // The running task picks it up once the current write is done
+                    return future;
+                }
+                mScheduled = true;
+            }
+
+            try {
+                sExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    mScheduled = false;
+                    mPendingFuture = null;
+                    mPendingValue = null;
+                }
+                if (sRejected.getAndIncrement() == 0) {
+                    Log.w(TAG, "Write queue full, dropping write to " + mPath);
+                }
+                future.complete(false);
+            }
+            return future;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final String value;
+                final boolean force;
+                final CompletableFuture<Boolean> future;
+                synchronized (this) {
+                    if (mPendingFuture == null) {
+                        mScheduled = false;
+                        return;
+                    }
+                    value = mPendingValue;
+                    force = mPendingForce;
+                    future = mPendingFuture;
+                    mPendingValue = null;
+                    mPendingFuture = null;
+                }
+
+                try {
+                    future.complete(force ? FileUtils.writeLine(mPath, value)
+                            : FileUtils.writeLineIfChanged(mPath, value));
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.widget;
+
+import android.app.AlertDialog;
+import android.content.Context;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+
+import org.lineageos.settings.R;
+
+import java.util.Arrays;
+
+/**
+ * Lets the user give single activities of an app a profile of their own,
+ * first listing the activities with their current profiles, then offering
+ * the profiles for the one picked.
+ */
+public final class ActivityProfileDialog {
+
+    public interface Profiles {
+        /** The activity uses the profile of its app */
+        int PROFILE_INHERIT = -1;
+        /** The activity has a profile of its own which is not among the offered ones */
+        int PROFILE_OTHER = -2;
+
+        /**
+         * @return the activity's own profile, PROFILE_INHERIT or PROFILE_OTHER
+         */
+        int get(String className);
+
+        /**
+         * @return the name of the activity's own profile if it is PROFILE_OTHER
+         */
+        default CharSequence getOtherName(String className) {
+            return null;
+        }
+
+        /**
+         * @param profile negative to make the activity use its app's profile
+         */
+        void set(String className, int profile);
+    }
+
+    private ActivityProfileDialog() {
+        // This class is not supposed to be instantiated
+    }
+
+    /**
+     * @param profileNames display names, indexed by profile
+     */
+    public static void show(Context context, String packageName, CharSequence title,
+            CharSequence[] profileNames, Profiles profiles) {
+        final ActivityInfo[] activities = getActivities(context, packageName);
+        final AlertDialog.Builder builder = new AlertDialog.Builder(context)
+                .setTitle(title)
+                .setNegativeButton(android.R.string.cancel, null);
+        if (activities.length == 0) {
+            builder.setMessage(R.string.activity_profile_none).show();
+            return;
+        }
+
+        final CharSequence[] items = new CharSequence[activities.length];
+        for (int i = 0; i < activities.length; i++) {
+            items[i] = context.getString(R.string.activity_profile_item,
+                    shortName(packageName, activities[i].name),
+                    getName(context, profileNames, profiles, activities[i].name));
+        }
+        builder.setItems(items, (dialog, which) -> choose(context, packageName, title,
+                profileNames, profiles, activities[which].name)).show();
+    }
+
+    private static void choose(Context context, String packageName, CharSequence title,
+            CharSequence[] profileNames, Profiles profiles, String className) {
+        final CharSequence[] choices = new CharSequence[profileNames.length + 1];
+        choices[0] = context.getString(R.string.activity_profile_inherit);
+        System.arraycopy(profileNames, 0, choices, 1, profileNames.length);
+
+        final int profile = profiles.get(className);
+        // Nothing is checked if the current profile is not among the offered ones
+        final int checked = profile >= 0 ? profile + 1
+                : profile == Profiles.PROFILE_OTHER ? -1 : 0;
+        new AlertDialog.Builder(context)
+                .setTitle(shortName(packageName, className))
+                .setSingleChoiceItems(choices, checked,
+                        (dialog, which) -> {
+                            profiles.set(className, which - 1);
+                            dialog.dismiss();
+                            // Back to the list, showing the new profile
+                            show(context, packageName, title, profileNames, profiles);
+                        })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    private static CharSequence getName(Context context, CharSequence[] profileNames,
+            Profiles profiles, String className) {
+        final int profile = profiles.get(className);
+        if (profile >= 0) {
+            return profileNames[profile];
+        }
+        return profile == Profiles.PROFILE_OTHER ? profiles.getOtherName(className)
+                : context.getString(R.string.activity_profile_inherit);
+    }
+
+    private static ActivityInfo[] getActivities(Context context, String packageName) {
+        try {
+            final PackageInfo info = context.getPackageManager().getPackageInfo(packageName,
+                    PackageManager.PackageInfoFlags.of(PackageManager.GET_ACTIVITIES));
+            if (info.activities == null) {
+                return new ActivityInfo[0];
+            }
+            final ActivityInfo[] activities = info.activities.clone();
+            Arrays.sort(activities, (a, b) -> a.name.compareTo(b.name));
+            return activities;
+        } catch (PackageManager.NameNotFoundException e) {
+            return new ActivityInfo[0];
+        }
+    }
+
+    private static String shortName(String packageName, String className) {
+        return className.startsWith(packageName + ".")
+                ? className.substring(packageName.length()) : className;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.refreshrate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.provider.Settings;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.lineageos.settings.benchmark.FakeContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Idle downshifting on a 60/120 Hz panel, driven by a fake detector
+ */
+public class IdleDownshifterTest {
+
+    private static final String PEAK_REFRESH_RATE = "peak_refresh_rate";
+    private static final String MIN_REFRESH_RATE = "min_refresh_rate";
+
+    private static final String GAME = "com.example.game";
+    private static final String FIXED = "com.example.fixed";
+
+    private File mDir;
+    private RefreshUtils mRefreshUtils;
+    private FakeIdleDetector mDetector;
+    private IdleDownshifter mDownshifter;
+
+    @Before
+    public void setUp() throws IOException {
+        // The user's baseline, taken once per process
+        Settings.System.putFloat(null, PEAK_REFRESH_RATE, 120f);
+        Settings.System.putFloat(null, MIN_REFRESH_RATE, 60f);
+
+        mDir = Files.createTempDirectory("refresh").toFile();
+        mRefreshUtils = new RefreshUtils(new FakeContext(mDir));
+        mRefreshUtils.writePackage(GAME, RefreshUtils.encodeRates(120, 0));
+        mRefreshUtils.writePackage(FIXED, RefreshUtils.encodeRates(120, 120));
+        mDetector = new FakeIdleDetector();
+        mDownshifter = new IdleDownshifter(mRefreshUtils, mDetector);
+    }
+
+    @After
+    public void tearDown() {
+        mDownshifter.stop();
+        // Back to the baseline for the next test, the policy outlives it
+        mRefreshUtils.setRefreshRate("com.example.none");
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void lowersPeakWhileIdle() {
+        mDownshifter.onForegroundChanged(GAME, GAME + ".Main");
+        assertEquals(GAME, mDetector.packageName);
+        assertEquals(IdleDownshifter.IDLE_TIMEOUT_MS, mDetector.timeoutMs);
+        assertRates(120, 60);
+
+        mDetector.listener.onIdle();
+        assertTrue(mDownshifter.isIdle());
+        assertRates(60, 60);
+
+        mDetector.listener.onActive();
+        assertFalse(mDownshifter.isIdle());
+        assertRates(120, 60);
+    }
+
+    @Test
+    public void leavesFixedRateAlone() {
+        mDownshifter.onForegroundChanged(GAME, GAME + ".Main");
+        final IdleDetector.Listener listener = mDetector.listener;
+
+        mDownshifter.onForegroundChanged(FIXED, FIXED + ".Main");
+        assertNull(mDetector.packageName);
+        assertRates(120, 120);
+
+        // Late callback for the app which was watched before
+        listener.onIdle();
+        assertFalse(mDownshifter.isIdle());
+        assertRates(120, 120);
+    }
+
+    @Test
+    public void foregroundChangeEndsIdle() {
+        mDownshifter.onForegroundChanged(GAME, GAME + ".Main");
+        mDetector.listener.onIdle();
+
+        mDownshifter.onForegroundChanged(GAME, GAME + ".Settings");
+        assertFalse(mDownshifter.isIdle());
+        assertEquals(GAME, mDetector.packageName);
+        assertRates(120, 60);
+    }
+
+    @Test
+    public void stopRestoresRate() {
+        mDownshifter.onForegroundChanged(GAME, GAME + ".Main");
+        mDetector.listener.onIdle();
+
+        mDownshifter.stop();
+        assertFalse(mDownshifter.isIdle());
+        assertNull(mDetector.packageName);
+        assertRates(120, 60);
+    }
+
+    private static void assertRates(float peak, float min) {
+        assertEquals(peak, Settings.System.getFloat(null, PEAK_REFRESH_RATE, 0), 0f);
+        assertEquals(min, Settings.System.getFloat(null, MIN_REFRESH_RATE, 0), 0f);
+    }
+
+    private static final class FakeIdleDetector implements IdleDetector {
+        // Watched app, null while stopped
+        String packageName;
+        long timeoutMs;
+        Listener listener;
+
+        @Override
+        public void start(String packageName, long timeoutMs, Listener listener) {
+            this.packageName = packageName;
+            this.timeoutMs = timeoutMs;
+            this.listener = listener;
+        }
+
+        @Override
+        public void stop() {
+            packageName = null;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2023 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.thermal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+/**
+ * Promote, demote and dwell timing with the shipped delays, driven by a
+ * fake clock
+ */
+public class ThermalSwitchPolicyTest {
+
+    private static final long PROMOTE_DELAY_MS = 0;
+    private static final long DEMOTE_DELAY_MS = 2500;
+    private static final long MIN_DWELL_MS = 1000;
+
+    private static final String GAME = "com.example.game";
+    private static final String LAUNCHER = "com.android.launcher3";
+    private static final String SYSTEMUI = "com.android.systemui";
+
+    private long mNow;
+    private ThermalSwitchPolicy mPolicy;
+
+    @Before
+    public void setUp() {
+        mNow = 0;
+        mPolicy = new ThermalSwitchPolicy(() -> mNow, Collections.singleton(SYSTEMUI),
+                PROMOTE_DELAY_MS, DEMOTE_DELAY_MS, MIN_DWELL_MS);
+        // Start out well past the dwell time of the initial default profile
+        mNow = 10000;
+    }
+
+    @Test
+    public void promotesWithoutDelay() {
+        mPolicy.onForeground(GAME, ThermalUtils.STATE_GAMING);
+        assertEquals(0, mPolicy.pendingDelay());
+        assertEquals(ThermalUtils.STATE_GAMING, mPolicy.poll());
+        assertEquals(ThermalSwitchPolicy.NONE, mPolicy.poll());
+    }
+
+    @Test
+    public void demotesAfterDemoteDelay() {
+        promote();
+        mNow += 5000;
+        mPolicy.onForeground(LAUNCHER, ThermalUtils.STATE_DEFAULT);
+        assertEquals(DEMOTE_DELAY_MS, mPolicy.pendingDelay());
+
+        mNow += DEMOTE_DELAY_MS - 1;
+        assertEquals(ThermalSwitchPolicy.NONE, mPolicy.poll());
+        mNow += 1;
+        assertEquals(ThermalUtils.STATE_DEFAULT, mPolicy.poll());
+    }
+
+    @Test
+    public void comingBackBeforeDemoteKeepsProfile() {
+        promote();
+        mNow += 5000;
+        mPolicy.onForeground(LAUNCHER, ThermalUtils.STATE_DEFAULT);
+        mNow += DEMOTE_DELAY_MS - 1;
+        mPolicy.onForeground(GAME, ThermalUtils.STATE_GAMING);
+
+        assertEquals(-1, mPolicy.pendingDelay());
+        mNow += DEMOTE_DELAY_MS;
+        assertEquals(ThermalSwitchPolicy.NONE, mPolicy.poll());
+    }
+
+    @Test
+    public void keepsProfileForMinDwell() {
+        promote();
+        mPolicy.onForeground(LAUNCHER, ThermalUtils.STATE_BENCHMARK);
+        assertEquals(MIN_DWELL_MS, mPolicy.pendingDelay());
+
+        mNow += MIN_DWELL_MS - 1;
+        assertEquals(ThermalSwitchPolicy.NONE, mPolicy.poll());
+        mNow += 1;
+        assertEquals(ThermalUtils.STATE_BENCHMARK, mPolicy.poll());
+    }
+
+    @Test
+    public void demoteDelayOutlastsDwell() {
+        promote();
+        mPolicy.onForeground(LAUNCHER, ThermalUtils.STATE_DEFAULT);
+        // The demote delay is due after the dwell time, so it decides
+        assertEquals(DEMOTE_DELAY_MS, mPolicy.pendingDelay());
+    }
+
+    @Test
+    public void ignoresTransientPackages() {
+        assertTrue(mPolicy.isTransient(SYSTEMUI));
+        assertFalse(mPolicy.isTransient(LAUNCHER));
+        promote();
+        mPolicy.onForeground(SYSTEMUI, ThermalUtils.STATE_DEFAULT);
+        assertEquals(-1, mPolicy.pendingDelay());
+        mNow += DEMOTE_DELAY_MS;
+        assertEquals(ThermalSwitchPolicy.NONE, mPolicy.poll());
+    }
+
+    @Test
+    public void resetRestartsDwell() {
+        mPolicy.reset(ThermalUtils.STATE_CAMERA);
+        mPolicy.onForeground(GAME, ThermalUtils.STATE_GAMING);
+        assertEquals(MIN_DWELL_MS, mPolicy.pendingDelay());
+    }
+
+    private void promote() {
+        mPolicy.onForeground(GAME, ThermalUtils.STATE_GAMING);
+        assertEquals(ThermalUtils.STATE_GAMING, mPolicy.poll());
+    }
+}